@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014-2018 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.circleservice.api.crypto.AttachmentCipherInputStream;
+import org.whispersystems.circleservice.api.crypto.AttachmentCipherOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of encrypting and decrypting attachments of various sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AttachmentCipherBenchmark {
+
+  private static final int CHUNK_SIZE = 8192;
+
+  @Param({"4096", "1048576", "16777216"})
+  public int size;
+
+  private byte[] plaintext;
+  private byte[] key;
+  private byte[] digest;
+  private byte[] buffer;
+  private File   ciphertextFile;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    SecureRandom random = new SecureRandom();
+
+    this.plaintext = new byte[size];
+    this.key       = new byte[64];
+    this.buffer    = new byte[CHUNK_SIZE];
+
+    random.nextBytes(plaintext);
+    random.nextBytes(key);
+
+    this.ciphertextFile = File.createTempFile("attachment", ".enc");
+
+    FileOutputStream             fileOutput   = new FileOutputStream(ciphertextFile);
+    AttachmentCipherOutputStream cipherOutput = new AttachmentCipherOutputStream(key, fileOutput);
+
+    cipherOutput.write(plaintext);
+    cipherOutput.flush();
+    cipherOutput.close();
+
+    this.digest = cipherOutput.getTransmittedDigest();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    ciphertextFile.delete();
+  }
+
+  @Benchmark
+  public byte[] encrypt() throws IOException {
+    AttachmentCipherOutputStream cipherOutput = new AttachmentCipherOutputStream(key, new NullOutputStream());
+
+    for (int offset=0;offset<plaintext.length;offset+=CHUNK_SIZE) {
+      cipherOutput.write(plaintext, offset, Math.min(CHUNK_SIZE, plaintext.length - offset));
+    }
+
+    cipherOutput.flush();
+    return cipherOutput.getTransmittedDigest();
+  }
+
+  @Benchmark
+  public long decrypt() throws IOException, InvalidMessageException {
+    InputStream inputStream = AttachmentCipherInputStream.createFor(ciphertextFile, plaintext.length, key, digest);
+    long        total       = 0;
+    int         read;
+
+    try {
+      while ((read = inputStream.read(buffer)) != -1) {
+        total += read;
+      }
+    } finally {
+      inputStream.close();
+    }
+
+    return total;
+  }
+
+  private static class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {}
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014-2018 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.circleservice.internal.push.OutgoingPushMessage;
+import org.whispersystems.circleservice.internal.push.OutgoingPushMessageList;
+import org.whispersystems.circleservice.internal.push.PushTransportDetails;
+import org.whispersystems.circleservice.internal.util.Base64;
+import org.whispersystems.circleservice.internal.util.JsonUtil;
+
+import java.security.SecureRandom;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the padding and encoding steps every outgoing message goes through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncodingBenchmark {
+
+  @Param({"160", "4096"})
+  public int messageSize;
+
+  @Param({"1", "5"})
+  public int deviceCount;
+
+  private PushTransportDetails    transportDetails;
+  private byte[]                  message;
+  private byte[]                  paddedMessage;
+  private OutgoingPushMessageList messageList;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    SecureRandom random = new SecureRandom();
+
+    this.transportDetails = PushTransportDetails.forVersion(3);
+    this.message          = new byte[messageSize];
+
+    random.nextBytes(message);
+
+    this.paddedMessage = transportDetails.getPaddedMessageBody(message);
+
+    List<OutgoingPushMessage> messages = new LinkedList<>();
+    String                    body     = Base64.encodeBytes(paddedMessage);
+
+    for (int i=1;i<=deviceCount;i++) {
+      messages.add(new OutgoingPushMessage(1, i, random.nextInt(16380) + 1, body));
+    }
+
+    this.messageList = new OutgoingPushMessageList("+14151231234", System.currentTimeMillis(), messages, false);
+  }
+
+  @Benchmark
+  public byte[] pad() {
+    return transportDetails.getPaddedMessageBody(message);
+  }
+
+  @Benchmark
+  public byte[] stripPadding() {
+    return transportDetails.getStrippedPaddingMessageBody(paddedMessage);
+  }
+
+  @Benchmark
+  public String base64Encode() {
+    return Base64.encodeBytes(paddedMessage);
+  }
+
+  @Benchmark
+  public String serializeMessageList() {
+    return JsonUtil.toJson(messageList);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014-2018 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.benchmark;
+
+import com.google.protobuf.ByteString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.InvalidVersionException;
+import org.whispersystems.circleservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.circleservice.api.messages.SignalServiceEnvelopeDecoder;
+import org.whispersystems.circleservice.internal.util.Base64;
+import org.whispersystems.circleservice.internal.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.whispersystems.circleservice.internal.push.SignalServiceProtos.Envelope;
+
+/**
+ * Cost of opening a signaling-key encrypted envelope, as received over the websocket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EnvelopeBenchmark {
+
+  private static final int CIPHER_KEY_SIZE = 32;
+  private static final int MAC_KEY_SIZE    = 20;
+  private static final int MAC_SIZE        = 10;
+
+  @Param({"256", "4096", "65536"})
+  public int contentSize;
+
+  private String                       signalingKey;
+  private SignalServiceEnvelopeDecoder decoder;
+  private byte[]                       ciphertext;
+
+  @Setup(Level.Trial)
+  public void setup() throws GeneralSecurityException, IOException {
+    SecureRandom random  = new SecureRandom();
+    byte[]       keys    = new byte[CIPHER_KEY_SIZE + MAC_KEY_SIZE];
+    byte[]       iv      = new byte[16];
+    byte[]       content = new byte[contentSize];
+
+    random.nextBytes(keys);
+    random.nextBytes(iv);
+    random.nextBytes(content);
+
+    byte[][] parts     = Util.split(keys, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+    byte[]   plaintext = Envelope.newBuilder()
+                                 .setType(Envelope.Type.CIPHERTEXT)
+                                 .setSource("+14151231234")
+                                 .setSourceDevice(1)
+                                 .setTimestamp(System.currentTimeMillis())
+                                 .setServerTimestamp(System.currentTimeMillis())
+                                 .setContent(ByteString.copyFrom(content))
+                                 .build()
+                                 .toByteArray();
+
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(parts[0], "AES"), new IvParameterSpec(iv));
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    output.write(1);
+    output.write(iv);
+    output.write(cipher.doFinal(plaintext));
+
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+    byte[] macBytes = mac.doFinal(output.toByteArray());
+    output.write(macBytes, 0, MAC_SIZE);
+
+    this.signalingKey = Base64.encodeBytes(keys);
+    this.ciphertext   = output.toByteArray();
+    this.decoder      = new SignalServiceEnvelopeDecoder(signalingKey);
+  }
+
+  @Benchmark
+  public SignalServiceEnvelope decrypt() throws IOException, InvalidVersionException {
+    return new SignalServiceEnvelope(ciphertext, signalingKey);
+  }
+
+  @Benchmark
+  public SignalServiceEnvelope decode() throws IOException, InvalidVersionException {
+    return decoder.decode(ciphertext);
+  }
+}
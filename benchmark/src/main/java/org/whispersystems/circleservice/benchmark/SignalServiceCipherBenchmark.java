@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014-2018 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.signal.libsignal.metadata.InvalidMetadataMessageException;
+import org.signal.libsignal.metadata.InvalidMetadataVersionException;
+import org.signal.libsignal.metadata.ProtocolDuplicateMessageException;
+import org.signal.libsignal.metadata.ProtocolInvalidKeyException;
+import org.signal.libsignal.metadata.ProtocolInvalidKeyIdException;
+import org.signal.libsignal.metadata.ProtocolInvalidMessageException;
+import org.signal.libsignal.metadata.ProtocolInvalidVersionException;
+import org.signal.libsignal.metadata.ProtocolLegacyMessageException;
+import org.signal.libsignal.metadata.ProtocolNoSessionException;
+import org.signal.libsignal.metadata.ProtocolUntrustedIdentityException;
+import org.signal.libsignal.metadata.SelfSendException;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.UntrustedIdentityException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.circleservice.api.crypto.SignalServiceCipher;
+import org.whispersystems.circleservice.api.crypto.UnidentifiedAccess;
+import org.whispersystems.circleservice.api.messages.SignalServiceContent;
+import org.whispersystems.circleservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.circleservice.api.push.SignalServiceAddress;
+import org.whispersystems.circleservice.internal.push.OutgoingPushMessage;
+import org.whispersystems.circleservice.internal.push.PushTransportDetails;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.whispersystems.circleservice.internal.push.SignalServiceProtos.Content;
+import static org.whispersystems.circleservice.internal.push.SignalServiceProtos.DataMessage;
+import static org.whispersystems.circleservice.internal.push.SignalServiceProtos.Envelope;
+
+/**
+ * Cost of encrypting and decrypting a typical text message with {@link SignalServiceCipher}
+ * over an established session, using in-memory protocol stores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SignalServiceCipherBenchmark {
+
+  private static final String ALICE_NUMBER = "+14151111111";
+  private static final String BOB_NUMBER   = "+14152222222";
+  private static final int    BATCH_SIZE   = 100;
+
+  private SignalServiceCipher     aliceCipher;
+  private SignalServiceCipher     bobCipher;
+  private SessionCipher           aliceSessionCipher;
+  private SignalProtocolAddress   bobAddress;
+  private long                    timestamp;
+  private byte[]                  content;
+  private SignalServiceEnvelope[] envelopes;
+
+  @Setup(Level.Trial)
+  public void setup() throws InvalidKeyException, UntrustedIdentityException {
+    SignalProtocolStore aliceStore = createStore();
+    SignalProtocolStore bobStore   = createStore();
+
+    PreKeyRecord       preKey       = new PreKeyRecord(1, Curve.generateKeyPair());
+    SignedPreKeyRecord signedPreKey = KeyHelper.generateSignedPreKey(bobStore.getIdentityKeyPair(), 1);
+
+    bobStore.storePreKey(preKey.getId(), preKey);
+    bobStore.storeSignedPreKey(signedPreKey.getId(), signedPreKey);
+
+    PreKeyBundle bobBundle = new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                              preKey.getId(), preKey.getKeyPair().getPublicKey(),
+                                              signedPreKey.getId(), signedPreKey.getKeyPair().getPublicKey(),
+                                              signedPreKey.getSignature(),
+                                              bobStore.getIdentityKeyPair().getPublicKey());
+
+    this.bobAddress = new SignalProtocolAddress(BOB_NUMBER, 1);
+
+    new SessionBuilder(aliceStore, bobAddress).process(bobBundle);
+
+    this.aliceCipher        = new SignalServiceCipher(new SignalServiceAddress(ALICE_NUMBER), aliceStore, null);
+    this.bobCipher          = new SignalServiceCipher(new SignalServiceAddress(BOB_NUMBER), bobStore, null);
+    this.aliceSessionCipher = new SessionCipher(aliceStore, bobAddress);
+    this.envelopes          = new SignalServiceEnvelope[BATCH_SIZE];
+    this.timestamp          = System.currentTimeMillis();
+    this.content            = Content.newBuilder()
+                                     .setDataMessage(DataMessage.newBuilder()
+                                                                .setBody("The quick brown fox jumps over the lazy dog.")
+                                                                .setTimestamp(timestamp))
+                                     .build()
+                                     .toByteArray();
+  }
+
+  @Setup(Level.Invocation)
+  public void prepareEnvelopes() throws UntrustedIdentityException {
+    PushTransportDetails transportDetails = PushTransportDetails.forVersion(aliceSessionCipher.getSessionVersion());
+
+    for (int i=0;i<envelopes.length;i++) {
+      CiphertextMessage message = aliceSessionCipher.encrypt(transportDetails.getPaddedMessageBody(content));
+      int               type    = message.getType() == CiphertextMessage.PREKEY_TYPE ? Envelope.Type.PREKEY_BUNDLE_VALUE
+                                                                                      : Envelope.Type.CIPHERTEXT_VALUE;
+
+      envelopes[i] = new SignalServiceEnvelope(type, ALICE_NUMBER, 1, timestamp, null,
+                                               message.serialize(), timestamp, null);
+    }
+  }
+
+  @Benchmark
+  public OutgoingPushMessage encrypt() throws UntrustedIdentityException, InvalidKeyException {
+    return aliceCipher.encrypt(bobAddress, Optional.<UnidentifiedAccess>absent(), content);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public SignalServiceContent decrypt()
+      throws InvalidMetadataMessageException, InvalidMetadataVersionException,
+      ProtocolInvalidKeyIdException, ProtocolLegacyMessageException,
+      ProtocolUntrustedIdentityException, ProtocolNoSessionException,
+      ProtocolInvalidVersionException, ProtocolInvalidMessageException,
+      ProtocolInvalidKeyException, ProtocolDuplicateMessageException,
+      SelfSendException
+  {
+    SignalServiceContent result = null;
+
+    for (SignalServiceEnvelope envelope : envelopes) {
+      result = bobCipher.decrypt(envelope);
+    }
+
+    return result;
+  }
+
+  private static SignalProtocolStore createStore() {
+    IdentityKeyPair identityKeyPair = KeyHelper.generateIdentityKeyPair();
+    int             registrationId  = KeyHelper.generateRegistrationId(false);
+
+    return new InMemorySignalProtocolStore(identityKeyPair, registrationId);
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014-2018 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.api;
+
+import org.signal.libsignal.metadata.certificate.SenderCertificate;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.circleservice.internal.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds this account's sender certificate for sealed sender sends, and keeps it fresh.
+ *
+ * The current certificate is read from a volatile field, so once one has been fetched
+ * {@link #getCertificate()} never waits on the network.  A background refresh is scheduled
+ * for a margin before the certificate expires, and retried after a delay if it fails.
+ * Refreshes requested while one is already running share its result.
+ *
+ * Refreshes keep being scheduled until {@link #shutdown()} is called, so a holder that is
+ * no longer needed must be shut down.
+ */
+public class SenderCertificateHolder {
+
+  private static final String TAG = SenderCertificateHolder.class.getSimpleName();
+
+  private static final long SCHEDULER_KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final CertificateFetcher          fetcher;
+  private final long                        refreshMarginMillis;
+  private final long                        retryDelayMillis;
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  private volatile Certificate current;
+
+  private SettableFuture<byte[]> refreshing;
+  private ScheduledFuture<?>     scheduledRefresh;
+  private boolean                shutdown;
+
+  SenderCertificateHolder(CertificateFetcher fetcher, long refreshMarginMillis, long retryDelayMillis) {
+    this.fetcher             = fetcher;
+    this.refreshMarginMillis = refreshMarginMillis;
+    this.retryDelayMillis    = retryDelayMillis;
+    this.scheduler           = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "SenderCertificateHolder");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    this.scheduler.setKeepAliveTime(SCHEDULER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+    this.scheduler.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return The current certificate, if there is one and it hasn't expired.  Never blocks.
+   */
+  public Optional<byte[]> getCachedCertificate() {
+    Certificate certificate = current;
+
+    if (certificate == null || certificate.expiration <= System.currentTimeMillis()) {
+      return Optional.absent();
+    }
+
+    return Optional.of(certificate.serialized);
+  }
+
+  /**
+   * @return The current certificate.  Only blocks if there is no unexpired certificate yet,
+   *         in which case it waits for a refresh.
+   */
+  public byte[] getCertificate() throws IOException {
+    Optional<byte[]> cached = getCachedCertificate();
+
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+
+    try {
+      return refresh().get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      else                                     throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Fetch a new certificate in the background, or join the fetch already in progress.
+   */
+  public ListenableFuture<byte[]> refresh() {
+    final SettableFuture<byte[]> future;
+
+    synchronized (this) {
+      if (refreshing != null) {
+        return refreshing;
+      }
+
+      future = new SettableFuture<>();
+
+      if (shutdown) {
+        future.setException(new IOException("Sender certificate holder has been shut down"));
+        return future;
+      }
+
+      refreshing = future;
+    }
+
+    try {
+      scheduler.execute(new Runnable() {
+        @Override
+        public void run() {
+          fetch(future);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        refreshing = null;
+      }
+
+      future.setException(new IOException(e));
+    }
+
+    return future;
+  }
+
+  public void shutdown() {
+    synchronized (this) {
+      shutdown = true;
+    }
+
+    scheduler.shutdownNow();
+  }
+
+  private void fetch(SettableFuture<byte[]> future) {
+    byte[]      serialized  = null;
+    IOException failure     = null;
+    long        delayMillis = retryDelayMillis;
+
+    try {
+      serialized  = fetcher.fetch();
+      current     = new Certificate(serialized, new SenderCertificate(serialized).getExpiration());
+      delayMillis = Math.max(current.expiration - refreshMarginMillis - System.currentTimeMillis(), retryDelayMillis);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      failure = e;
+    } catch (Throwable t) {
+      Log.w(TAG, t);
+      failure = new IOException(t);
+    } finally {
+      synchronized (this) {
+        refreshing = null;
+
+        if (scheduledRefresh != null) {
+          scheduledRefresh.cancel(false);
+        }
+
+        if (!shutdown) {
+          try {
+            scheduledRefresh = scheduler.schedule(new Runnable() {
+              @Override
+              public void run() {
+                refresh();
+              }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+          } catch (RejectedExecutionException e) {
+            Log.w(TAG, e);
+          }
+        }
+      }
+
+      if (failure == null) future.set(serialized);
+      else                 future.setException(failure);
+    }
+  }
+
+  /**
+   * Retrieves a new serialized sender certificate from the service.
+   */
+  interface CertificateFetcher {
+    byte[] fetch() throws IOException;
+  }
+
+  private static class Certificate {
+    private final byte[] serialized;
+    private final long   expiration;
+
+    private Certificate(byte[] serialized, long expiration) {
+      this.serialized = serialized;
+      this.expiration = expiration;
+    }
+  }
+}
@@ -9,9 +9,6 @@ package org.whispersystems.circleservice.api;
 
 import com.google.protobuf.ByteString;
 
-import org.spongycastle.crypto.InvalidCipherTextException;
-import org.whispersystems.curve25519.Curve25519;
-import org.whispersystems.curve25519.Curve25519KeyPair;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyException;
@@ -19,8 +16,8 @@ import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.logging.Log;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
-import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.circleservice.api.contacts.RegisteredNumberIndex;
 import org.whispersystems.circleservice.api.crypto.ProfileCipher;
 import org.whispersystems.circleservice.api.crypto.ProfileCipherOutputStream;
 import org.whispersystems.circleservice.api.messages.calls.TurnServerInfo;
@@ -30,16 +27,12 @@ import org.whispersystems.circleservice.api.push.SignedPreKeyEntity;
 import org.whispersystems.circleservice.api.util.CredentialsProvider;
 import org.whispersystems.circleservice.api.util.StreamDetails;
 import org.whispersystems.circleservice.internal.configuration.SignalServiceConfiguration;
-import org.whispersystems.circleservice.internal.contacts.crypto.ContactDiscoveryCipher;
+import org.whispersystems.circleservice.internal.contacts.ContactDiscoveryClient;
+import org.whispersystems.circleservice.internal.contacts.DirectoryTokenSet;
+import org.whispersystems.circleservice.internal.contacts.RemoteAttestationCache;
 import org.whispersystems.circleservice.internal.contacts.crypto.Quote;
-import org.whispersystems.circleservice.internal.contacts.crypto.RemoteAttestation;
-import org.whispersystems.circleservice.internal.contacts.crypto.RemoteAttestationKeys;
 import org.whispersystems.circleservice.internal.contacts.crypto.UnauthenticatedQuoteException;
 import org.whispersystems.circleservice.internal.contacts.crypto.UnauthenticatedResponseException;
-import org.whispersystems.circleservice.internal.contacts.entities.DiscoveryRequest;
-import org.whispersystems.circleservice.internal.contacts.entities.DiscoveryResponse;
-import org.whispersystems.circleservice.internal.contacts.entities.RemoteAttestationRequest;
-import org.whispersystems.circleservice.internal.contacts.entities.RemoteAttestationResponse;
 import org.whispersystems.circleservice.internal.crypto.ProvisioningCipher;
 import org.whispersystems.circleservice.internal.push.ProfileAvatarData;
 import org.whispersystems.circleservice.internal.push.PushServiceSocket;
@@ -50,16 +43,20 @@ import org.whispersystems.circleservice.internal.util.Util;
 
 import java.io.IOException;
 import java.security.KeyStore;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import static org.whispersystems.circleservice.internal.push.ProvisioningProtos.ProvisionMessage;
 
@@ -73,9 +70,18 @@ public class SignalServiceAccountManager {
 
   private static final String TAG = SignalServiceAccountManager.class.getSimpleName();
 
-  private final PushServiceSocket pushServiceSocket;
-  private final String            user;
-  private final String            userAgent;
+  private static final int  MAX_DIRECTORY_TOKENS_PER_REQUEST = 4096;
+  private static final int  MAX_DISCOVERY_ATTEMPTS           = 3;
+  private static final long DISCOVERY_RETRY_BACKOFF_MILLIS   = 1000;
+  private static final long REMOTE_ATTESTATION_TTL_MILLIS    = TimeUnit.MINUTES.toMillis(10);
+
+  private static final long SENDER_CERTIFICATE_REFRESH_MARGIN_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long SENDER_CERTIFICATE_RETRY_DELAY_MILLIS    = TimeUnit.MINUTES.toMillis(1);
+
+  private final PushServiceSocket      pushServiceSocket;
+  private final String                 user;
+  private final String                 userAgent;
+  private final RemoteAttestationCache remoteAttestationCache;
 
   /**
    * Construct a SignalServiceAccountManager.
@@ -96,15 +102,38 @@ public class SignalServiceAccountManager {
                                      CredentialsProvider credentialsProvider,
                                      String userAgent)
   {
-    this.pushServiceSocket = new PushServiceSocket(configuration, credentialsProvider, userAgent);
-    this.user              = credentialsProvider.getUser();
-    this.userAgent         = userAgent;
+    this.pushServiceSocket      = new PushServiceSocket(configuration, credentialsProvider, userAgent);
+    this.user                   = credentialsProvider.getUser();
+    this.userAgent              = userAgent;
+    this.remoteAttestationCache = new RemoteAttestationCache(REMOTE_ATTESTATION_TTL_MILLIS);
   }
 
   public byte[] getSenderCertificate() throws IOException {
     return this.pushServiceSocket.getSenderCertificate();
   }
 
+  /**
+   * Create a holder that fetches this account's sender certificate now, and then keeps it
+   * refreshed in the background for as long as it's running.  Call
+   * {@link SenderCertificateHolder#shutdown()} once it's no longer needed, or it will keep
+   * fetching certificates for the life of the process.
+   */
+  public SenderCertificateHolder createSenderCertificateHolder() {
+    SenderCertificateHolder.CertificateFetcher fetcher = new SenderCertificateHolder.CertificateFetcher() {
+      @Override
+      public byte[] fetch() throws IOException {
+        return pushServiceSocket.getSenderCertificate();
+      }
+    };
+
+    SenderCertificateHolder holder = new SenderCertificateHolder(fetcher,
+                                                                 SENDER_CERTIFICATE_REFRESH_MARGIN_MILLIS,
+                                                                 SENDER_CERTIFICATE_RETRY_DELAY_MILLIS);
+    holder.refresh();
+
+    return holder;
+  }
+
   public void setPin(Optional<String> pin) throws IOException {
     if (pin.isPresent()) {
       this.pushServiceSocket.setPin(pin.get());
@@ -242,7 +271,7 @@ public class SignalServiceAccountManager {
    * @throws IOException
    */
   public Optional<ContactTokenDetails> getContact(String e164number) throws IOException {
-    String              contactToken        = createDirectoryServerToken(e164number, true);
+    String              contactToken        = DirectoryTokenSet.createToken(e164number, true);
     ContactTokenDetails contactTokenDetails = this.pushServiceSocket.getContactTokenDetails(contactToken);
 
     if (contactTokenDetails != null) {
@@ -262,59 +291,244 @@ public class SignalServiceAccountManager {
   public List<ContactTokenDetails> getContacts(Set<String> e164numbers)
       throws IOException
   {
-    Map<String, String>       contactTokensMap = createDirectoryServerTokenMap(e164numbers);
-    List<ContactTokenDetails> activeTokens     = this.pushServiceSocket.retrieveDirectory(contactTokensMap.keySet());
+    DirectoryTokenSet         contactTokens = DirectoryTokenSet.create(packAddressBook(e164numbers), false);
+    List<ContactTokenDetails> results       = new LinkedList<>();
 
-    for (ContactTokenDetails activeToken : activeTokens) {
-      activeToken.setNumber(contactTokensMap.get(activeToken.getToken()));
+    for (int offset=0;offset<contactTokens.size();offset+=MAX_DIRECTORY_TOKENS_PER_REQUEST) {
+      int                       length       = Math.min(MAX_DIRECTORY_TOKENS_PER_REQUEST, contactTokens.size() - offset);
+      List<ContactTokenDetails> activeTokens = this.pushServiceSocket.retrieveDirectory(contactTokens.getTokens(offset, length));
+
+      for (ContactTokenDetails activeToken : activeTokens) {
+        int index = contactTokens.indexOf(activeToken.getToken());
+        if (index >= 0) activeToken.setNumber(contactTokens.getE164Number(index));
+      }
+
+      results.addAll(activeTokens);
     }
 
-    return activeTokens;
+    return results;
   }
 
   public List<String> getRegisteredUsers(KeyStore iasKeyStore, Set<String> e164numbers, String mrenclave)
       throws IOException, Quote.InvalidQuoteFormatException, UnauthenticatedQuoteException, SignatureException, UnauthenticatedResponseException
   {
-    try {
-      String            authorization = this.pushServiceSocket.getContactDiscoveryAuthorization();
-      Curve25519        curve         = Curve25519.getInstance(Curve25519.BEST);
-      Curve25519KeyPair keyPair       = curve.generateKeyPair();
+    ContactDiscoveryClient client      = createDiscoveryClient(iasKeyStore, mrenclave);
+    long[]                 addressBook = packAddressBook(e164numbers);
+    byte[]                 data        = client.discover(addressBook, 0, addressBook.length);
+    List<String>           results     = new LinkedList<>();
+
+    for (int i=0;i<data.length;i++) {
+      if (data[i] != 0) results.add("+" + addressBook[i]);
+    }
+
+    return results;
+  }
+
+  /**
+   * Discover registered users in a very large address book.
+   *
+   * The address book is split into chunks of at most chunkSize numbers, which are looked up
+   * concurrently, reusing cached attestation sessions.  A chunk that fails is retried up to
+   * {@link #MAX_DISCOVERY_ATTEMPTS} times before it's reported as failed, and the remaining
+   * chunks carry on regardless.  Attestation and signature failures aren't transient, so
+   * those chunks are reported as failed straight away.  Results and progress are delivered to the listener on the
+   * calling thread, one chunk at a time, as chunks complete.
+   *
+   * @param iasKeyStore The trust store for the IAS signing certificate.
+   * @param e164numbers The numbers to look up.
+   * @param mrenclave The enclave to attest.
+   * @param chunkSize The most numbers to send in a single discovery request.
+   * @param parallelism The most discovery requests to run at once.
+   * @param listener Receives registered numbers, progress, and failed chunks.
+   * @throws IOException If interrupted while waiting for chunks to complete.
+   */
+  public void getRegisteredUsers(KeyStore iasKeyStore, Set<String> e164numbers, String mrenclave,
+                                 int chunkSize, int parallelism, RegisteredUsersListener listener)
+      throws IOException
+  {
+    discoverRegisteredUsers(createDiscoveryClient(iasKeyStore, mrenclave), packAddressBook(e164numbers), chunkSize, parallelism, listener);
+  }
+
+  static void discoverRegisteredUsers(ContactDiscoveryClient client, final long[] addressBook,
+                                      int chunkSize, int parallelism, final RegisteredUsersListener listener)
+      throws IOException
+  {
+    discoverChunks(client, addressBook, chunkSize, parallelism, new ChunkListener() {
+      @Override
+      public void onChunk(DiscoveryChunk chunk, int processed) {
+        if (chunk.failure != null) {
+          listener.onChunkFailed(unpackAddressBook(addressBook, chunk.offset, chunk.length), chunk.failure);
+        } else {
+          for (int i=0;i<chunk.length;i++) {
+            if (chunk.data[i] != 0) listener.onRegisteredUser("+" + addressBook[chunk.offset + i]);
+          }
+        }
+
+        listener.onProgress(processed, addressBook.length);
+      }
+    });
+  }
+
+  /**
+   * Discover registered users incrementally, against a local index of earlier results.
+   *
+   * Numbers that are no longer in the address book are dropped from the index, and only
+   * numbers the index hasn't seen before are sent for discovery, unless a full
+   * reconciliation is requested, in which case every number is looked up again.  The
+   * index is updated in memory, and it's up to the caller to {@link RegisteredNumberIndex#save()}
+   * it.
+   *
+   * @param iasKeyStore The trust store for the IAS signing certificate.
+   * @param e164numbers The complete address book.
+   * @param mrenclave The enclave to attest.
+   * @param index The results of earlier discovery.
+   * @param fullReconciliation Whether to look up every number rather than just new ones.
+   * @param chunkSize The most numbers to send in a single discovery request.
+   * @param parallelism The most discovery requests to run at once.
+   * @return The registered numbers in the address book.
+   * @throws IOException If any chunk couldn't be discovered.  Chunks that succeeded are
+   *                     still recorded in the index, so a retry only sends the rest.
+   */
+  public Set<String> getRegisteredUsers(KeyStore iasKeyStore, Set<String> e164numbers, String mrenclave,
+                                        RegisteredNumberIndex index, boolean fullReconciliation,
+                                        int chunkSize, int parallelism)
+      throws IOException
+  {
+    long[] addressBook = packAddressBook(e164numbers);
+    index.retainAll(addressBook);
+
+    final long[]      lookup     = fullReconciliation ? addressBook : index.getUnknown(addressBook);
+    final long[]      discovered = new long[lookup.length];
+    final byte[]      results    = new byte[lookup.length];
+    final int[]       count      = new int[1];
+    final Exception[] failure    = new Exception[1];
+
+    if (lookup.length > 0) {
+      discoverChunks(createDiscoveryClient(iasKeyStore, mrenclave), lookup, chunkSize, parallelism, new ChunkListener() {
+        @Override
+        public void onChunk(DiscoveryChunk chunk, int processed) {
+          if (chunk.failure != null) {
+            if (failure[0] == null) failure[0] = chunk.failure;
+            return;
+          }
+
+          System.arraycopy(lookup, chunk.offset, discovered, count[0], chunk.length);
+          System.arraycopy(chunk.data, 0, results, count[0], chunk.length);
+          count[0] += chunk.length;
+        }
+      });
+    }
+
+    index.update(Arrays.copyOf(discovered, count[0]), Arrays.copyOf(results, count[0]));
+
+    if (failure[0] != null) {
+      throw new IOException("Discovery failed for " + (lookup.length - count[0]) + " numbers", failure[0]);
+    }
+
+    if (fullReconciliation) {
+      index.setLastFullReconciliationTime(System.currentTimeMillis());
+    }
+
+    return index.getRegisteredNumbers();
+  }
 
-      ContactDiscoveryCipher                        cipher              = new ContactDiscoveryCipher();
-      RemoteAttestationRequest                      attestationRequest  = new RemoteAttestationRequest(keyPair.getPublicKey());
-      Pair<RemoteAttestationResponse, List<String>> attestationResponse = this.pushServiceSocket.getContactDiscoveryRemoteAttestation(authorization, attestationRequest, mrenclave);
+  private ContactDiscoveryClient createDiscoveryClient(KeyStore iasKeyStore, String mrenclave) {
+    return new ContactDiscoveryClient(this.pushServiceSocket, iasKeyStore, mrenclave, this.remoteAttestationCache);
+  }
 
-      RemoteAttestationKeys keys      = new RemoteAttestationKeys(keyPair, attestationResponse.first().getServerEphemeralPublic(), attestationResponse.first().getServerStaticPublic());
-      Quote                 quote     = new Quote(attestationResponse.first().getQuote());
-      byte[]                requestId = cipher.getRequestId(keys, attestationResponse.first());
+  private static void discoverChunks(final ContactDiscoveryClient client, final long[] addressBook,
+                                     int chunkSize, int parallelism, ChunkListener listener)
+      throws IOException
+  {
+    if (chunkSize < 1 || parallelism < 1) {
+      throw new IllegalArgumentException("chunkSize and parallelism must be at least 1");
+    }
 
-      cipher.verifyServerQuote(quote, attestationResponse.first().getServerStaticPublic(), mrenclave);
-      cipher.verifyIasSignature(iasKeyStore, attestationResponse.first().getCertificates(), attestationResponse.first().getSignatureBody(), attestationResponse.first().getSignature(), quote);
+    ExecutorService                   executor          = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "SignalServiceAccountManager-discovery");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    CompletionService<DiscoveryChunk> completionService = new ExecutorCompletionService<>(executor);
 
-      RemoteAttestation remoteAttestation = new RemoteAttestation(requestId, keys);
-      List<String>      addressBook       = new LinkedList<>();
+    try {
+      int chunks = 0;
+
+      for (int offset=0;offset<addressBook.length;offset+=chunkSize) {
+        final int chunkOffset = offset;
+        final int chunkLength = Math.min(chunkSize, addressBook.length - offset);
 
-      for (String e164number : e164numbers) {
-        addressBook.add(e164number.substring(1));
+        completionService.submit(new Callable<DiscoveryChunk>() {
+          @Override
+          public DiscoveryChunk call() {
+            return discoverChunk(client, addressBook, chunkOffset, chunkLength);
+          }
+        });
+
+        chunks++;
       }
 
-      DiscoveryRequest  request  = cipher.createDiscoveryRequest(addressBook, remoteAttestation);
-      DiscoveryResponse response = this.pushServiceSocket.getContactDiscoveryRegisteredUsers(authorization, request, attestationResponse.second(), mrenclave);
-      byte[]            data     = cipher.getDiscoveryResponseData(response, remoteAttestation);
+      int processed = 0;
+
+      for (int i=0;i<chunks;i++) {
+        DiscoveryChunk chunk = completionService.take().get();
 
-      Iterator<String> addressBookIterator = addressBook.iterator();
-      List<String>     results             = new LinkedList<>();
+        processed += chunk.length;
+        listener.onChunk(chunk, processed);
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 
-      for (byte aData : data) {
-        String candidate = addressBookIterator.next();
+  private static DiscoveryChunk discoverChunk(ContactDiscoveryClient client, long[] addressBook, int offset, int length) {
+    Exception failure = null;
+
+    for (int attempt=1;attempt<=MAX_DISCOVERY_ATTEMPTS;attempt++) {
+      try {
+        return new DiscoveryChunk(offset, length, client.discover(addressBook, offset, length), null);
+      } catch (IOException | UnauthenticatedResponseException e) {
+        Log.w(TAG, "Discovery attempt " + attempt + " failed for chunk at " + offset, e);
+        failure = e;
+      } catch (Quote.InvalidQuoteFormatException | UnauthenticatedQuoteException | SignatureException | RuntimeException e) {
+        Log.w(TAG, "Discovery failed permanently for chunk at " + offset, e);
+        return new DiscoveryChunk(offset, length, null, e);
+      }
 
-        if (aData != 0) results.add('+' + candidate);
+      if (attempt < MAX_DISCOVERY_ATTEMPTS) {
+        Util.sleep(DISCOVERY_RETRY_BACKOFF_MILLIS * attempt);
       }
+    }
+
+    return new DiscoveryChunk(offset, length, null, failure);
+  }
+
+  private static long[] packAddressBook(Set<String> e164numbers) {
+    long[] addressBook = new long[e164numbers.size()];
+    int    index       = 0;
+
+    for (String e164number : e164numbers) {
+      addressBook[index++] = RegisteredNumberIndex.pack(e164number);
+    }
+
+    return addressBook;
+  }
 
-      return results;
-    } catch (InvalidCipherTextException e) {
-      throw new UnauthenticatedResponseException(e);
+  private static List<String> unpackAddressBook(long[] addressBook, int offset, int length) {
+    List<String> e164numbers = new ArrayList<>(length);
+
+    for (int i=0;i<length;i++) {
+      e164numbers.add("+" + addressBook[offset + i]);
     }
+
+    return e164numbers;
   }
 
   public void reportContactDiscoveryServiceMatch() {
@@ -420,27 +634,28 @@ public class SignalServiceAccountManager {
     this.pushServiceSocket.cancelInFlightRequests();
   }
 
-  private String createDirectoryServerToken(String e164number, boolean urlSafe) {
-    try {
-      MessageDigest digest  = MessageDigest.getInstance("SHA1");
-      byte[]        token   = Util.trim(digest.digest(e164number.getBytes()), 10);
-      String        encoded = Base64.encodeBytesWithoutPadding(token);
-
-      if (urlSafe) return encoded.replace('+', '-').replace('/', '_');
-      else         return encoded;
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    }
+  public interface RegisteredUsersListener {
+    public void onRegisteredUser(String e164number);
+    public void onProgress(int processed, int total);
+    public void onChunkFailed(List<String> e164numbers, Exception failure);
   }
 
-  private Map<String, String> createDirectoryServerTokenMap(Collection<String> e164numbers) {
-    Map<String,String> tokenMap = new HashMap<>(e164numbers.size());
+  private interface ChunkListener {
+    public void onChunk(DiscoveryChunk chunk, int processed);
+  }
 
-    for (String number : e164numbers) {
-      tokenMap.put(createDirectoryServerToken(number, false), number);
+  private static class DiscoveryChunk {
+    private final int       offset;
+    private final int       length;
+    private final byte[]    data;
+    private final Exception failure;
+
+    private DiscoveryChunk(int offset, int length, byte[] data, Exception failure) {
+      this.offset  = offset;
+      this.length  = length;
+      this.data    = data;
+      this.failure = failure;
     }
-
-    return tokenMap;
   }
 
 }
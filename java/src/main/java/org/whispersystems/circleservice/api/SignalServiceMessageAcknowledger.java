@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.api;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.circleservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.circleservice.internal.push.PushServiceSocket;
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches REST acknowledgements for received messages.
+ *
+ * Envelopes passed to {@link #acknowledge(SignalServiceEnvelope)} are queued, and the queue
+ * is flushed once it reaches the batch size or the oldest entry has waited for the maximum
+ * delay, whichever comes first.  A flush pipelines the acknowledgements as concurrent
+ * requests over the socket's pooled connections, with a bounded number in flight.
+ *
+ * Batches are dispatched one at a time, so a {@link #flush()} that runs while a background
+ * flush is dispatching waits for that batch to be sent before it waits on the responses.
+ *
+ * Nothing is acknowledged that hasn't been passed to {@link #acknowledge(SignalServiceEnvelope)},
+ * so callers should only do that once the message has been durably handled.  An
+ * acknowledgement that fails in the background is logged and reported by the next
+ * {@link #flush()}; the server will redeliver that message.
+ */
+public class SignalServiceMessageAcknowledger {
+
+  private static final String TAG = SignalServiceMessageAcknowledger.class.getSimpleName();
+
+  private final PushServiceSocket           socket;
+  private final int                         maxBatchSize;
+  private final long                        maxDelayMillis;
+  private final int                         maxInFlight;
+  private final Semaphore                   inFlight;
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final Object                      dispatchLock = new Object();
+
+  private List<SignalServiceEnvelope> pending = new LinkedList<>();
+  private ScheduledFuture<?>          scheduledFlush;
+  private boolean                     shutdown;
+
+  private volatile Throwable failure;
+
+  SignalServiceMessageAcknowledger(PushServiceSocket socket, int maxBatchSize, long maxDelayMillis, int maxInFlight) {
+    if (maxBatchSize < 1 || maxInFlight < 1) {
+      throw new IllegalArgumentException("maxBatchSize and maxInFlight must be at least 1");
+    }
+
+    this.socket         = socket;
+    this.maxBatchSize   = maxBatchSize;
+    this.maxDelayMillis = maxDelayMillis;
+    this.maxInFlight    = maxInFlight;
+    this.inFlight       = new Semaphore(maxInFlight);
+    this.scheduler      = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "SignalServiceMessageAcknowledger");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    this.scheduler.setKeepAliveTime(maxDelayMillis + 1000, TimeUnit.MILLISECONDS);
+    this.scheduler.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queue an acknowledgement for an envelope.  If the batch is full, this sends it, and
+   * blocks while the maximum number of acknowledgements are already in flight.
+   *
+   * @throws IOException If the acknowledger has been shut down.
+   */
+  public void acknowledge(SignalServiceEnvelope envelope) throws IOException {
+    boolean full;
+
+    synchronized (this) {
+      if (shutdown) {
+        throw new IOException("Acknowledger has been shut down");
+      }
+
+      full = pending.size() + 1 >= maxBatchSize;
+
+      if (!full && scheduledFlush == null) {
+        try {
+          scheduledFlush = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                sendPending();
+              } catch (IOException e) {
+                Log.w(TAG, e);
+              }
+            }
+          }, maxDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          throw new IOException(e);
+        }
+      }
+
+      pending.add(envelope);
+    }
+
+    if (full) {
+      sendPending();
+    }
+  }
+
+  /**
+   * Send everything that's queued and wait for all outstanding acknowledgements to complete.
+   *
+   * @throws IOException If any acknowledgement has failed since the last flush.
+   */
+  public void flush() throws IOException {
+    synchronized (dispatchLock) {
+      sendPending();
+
+      acquire(maxInFlight);
+      inFlight.release(maxInFlight);
+    }
+
+    Throwable failure = this.failure;
+    this.failure = null;
+
+    if      (failure instanceof IOException) throw (IOException)failure;
+    else if (failure != null)                throw new IOException(failure);
+  }
+
+  /**
+   * Flush, then release the background flush thread.  Later calls to
+   * {@link #acknowledge(SignalServiceEnvelope)} fail.
+   */
+  public void shutdown() throws IOException {
+    synchronized (this) {
+      shutdown = true;
+    }
+
+    try {
+      flush();
+    } finally {
+      scheduler.shutdown();
+    }
+
+    try {
+      scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void sendPending() throws IOException {
+    synchronized (dispatchLock) {
+      List<SignalServiceEnvelope> batch;
+
+      synchronized (this) {
+        batch   = pending;
+        pending = new LinkedList<>();
+
+        if (scheduledFlush != null) {
+          scheduledFlush.cancel(false);
+          scheduledFlush = null;
+        }
+      }
+
+      for (SignalServiceEnvelope envelope : batch) {
+        acquire(1);
+
+        ListenableFuture<Void> future;
+
+        if (envelope.hasUuid()) future = socket.acknowledgeMessageAsync(envelope.getUuid());
+        else                    future = socket.acknowledgeMessageAsync(envelope.getSource(), envelope.getTimestamp());
+
+        future.addListener(new ListenableFuture.Listener<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+            inFlight.release();
+          }
+
+          @Override
+          public void onFailure(ExecutionException e) {
+            Log.w(TAG, e);
+            if (failure == null) failure = e.getCause();
+            inFlight.release();
+          }
+        });
+      }
+    }
+  }
+
+  private void acquire(int permits) throws IOException {
+    try {
+      inFlight.acquire(permits);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -11,8 +11,13 @@ import com.google.protobuf.ByteString;
 import org.whispersystems.libsignal.InvalidVersionException;
 import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.circleservice.api.crypto.SignalServiceCipher;
 import org.whispersystems.circleservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.circleservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.circleservice.api.messages.SignalServiceEnvelopeDecoder;
+import org.whispersystems.circleservice.api.metrics.SignalServiceMetrics;
+import org.whispersystems.circleservice.api.metrics.SignalServiceMetricsProvider;
+import org.whispersystems.circleservice.api.profiles.ProfileCache;
 import org.whispersystems.circleservice.api.profiles.SignalServiceProfile;
 import org.whispersystems.circleservice.api.push.SignalServiceAddress;
 import org.whispersystems.circleservice.api.util.CredentialsProvider;
@@ -21,6 +26,8 @@ import org.whispersystems.circleservice.internal.push.SendMessageResponse;
 import org.whispersystems.circleservice.internal.util.Base64;
 import org.whispersystems.circleservice.internal.util.JsonUtil;
 import org.whispersystems.circleservice.internal.util.Util;
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.circleservice.internal.util.concurrent.SettableFuture;
 import org.whispersystems.circleservice.internal.websocket.WebSocketConnection;
 
 import java.io.IOException;
@@ -29,8 +36,15 @@ import java.security.SecureRandom;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.whispersystems.circleservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
 import static org.whispersystems.circleservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
@@ -44,12 +58,50 @@ public class SignalServiceMessagePipe {
 
   private static final String TAG = SignalServiceMessagePipe.class.getName();
 
+  private static final long REQUEST_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 64;
+
   private final WebSocketConnection           websocket;
   private final Optional<CredentialsProvider> credentialsProvider;
+  private final Semaphore                     inFlightRequests;
+  private final ScheduledExecutorService      timeoutExecutor;
+  private final SecureRandom                  random;
+  private final ProfileCache                  profileCache;
+
+  private volatile Pair<String, SignalServiceEnvelopeDecoder> envelopeDecoder;
+  private volatile boolean                                    shutdown;
 
   SignalServiceMessagePipe(WebSocketConnection websocket, Optional<CredentialsProvider> credentialsProvider) {
+    this(websocket, credentialsProvider, DEFAULT_MAX_IN_FLIGHT_REQUESTS,
+         new ProfileCache(ProfileCache.DEFAULT_MAX_SIZE, ProfileCache.DEFAULT_TTL_MILLIS));
+  }
+
+  SignalServiceMessagePipe(WebSocketConnection websocket, Optional<CredentialsProvider> credentialsProvider,
+                           int maxInFlightRequests, ProfileCache profileCache)
+  {
+    if (maxInFlightRequests < 1) {
+      throw new IllegalArgumentException("maxInFlightRequests must be at least 1");
+    }
+
     this.websocket           = websocket;
     this.credentialsProvider = credentialsProvider;
+    this.inFlightRequests    = new Semaphore(maxInFlightRequests);
+    this.profileCache        = profileCache;
+    this.timeoutExecutor     = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "SignalServiceMessagePipe-timeouts");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    try {
+      this.random = SecureRandom.getInstance("SHA1PRNG");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
 
     this.websocket.connect();
   }
@@ -103,8 +155,7 @@ public class SignalServiceMessagePipe {
 
       try {
         if (isSignalServiceEnvelope(request)) {
-          SignalServiceEnvelope envelope = new SignalServiceEnvelope(request.getBody().toByteArray(),
-                                                                     credentialsProvider.get().getSignalingKey());
+          SignalServiceEnvelope envelope = getEnvelopeDecoder().decode(request.getBody().toByteArray());
 
           callback.onMessage(envelope);
           return envelope;
@@ -115,73 +166,276 @@ public class SignalServiceMessagePipe {
     }
   }
 
+  /**
+   * Starts continuously reading messages off the pipe, decrypting them on a pool of
+   * worker threads.
+   *
+   * Messages from the same sender are decrypted and delivered in order, while messages
+   * from different senders are decrypted in parallel.  Sealed sender messages don't
+   * reveal their sender before decryption, so they are not ordered.  Each message is acknowledged
+   * only after the callback for it returns.  Don't combine this with {@link #read(long, TimeUnit)}
+   * on the same pipe.
+   *
+   * @param cipher The cipher to decrypt envelopes with.  Its store must be safe for
+   *               concurrent use when more than one worker is used.
+   * @param workerCount The number of decryption workers.
+   * @param callback The callback to deliver decrypted messages to.
+   * @return A handle that can be used to stop receiving.
+   */
+  public SignalServiceStreamingReceiver startReceiving(SignalServiceCipher cipher, int workerCount,
+                                                       SignalServiceStreamingReceiver.DecryptedMessageCallback callback)
+  {
+    if (!credentialsProvider.isPresent()) {
+      throw new IllegalArgumentException("You can't read messages if you haven't specified credentials");
+    }
+
+    SignalServiceEnvelopeDecoder decoder;
+
+    try {
+      decoder = getEnvelopeDecoder();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Invalid signaling key", e);
+    }
+
+    SignalServiceStreamingReceiver receiver = new SignalServiceStreamingReceiver(websocket, decoder, cipher, workerCount, callback);
+    receiver.start();
+
+    return receiver;
+  }
+
   public SendMessageResponse send(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
+    ListenableFuture<SendMessageResponse> future = sendAsync(list, unidentifiedAccess);
+
     try {
-      List<String> headers = new LinkedList<String>() {{
-        add("content-type:application/json");
-      }};
+      return future.get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      else                                     throw new IOException(e);
+    } catch (InterruptedException | TimeoutException e) {
+      future.cancel(true);
+      throw new IOException(e);
+    }
+  }
 
-      if (unidentifiedAccess.isPresent()) {
-        headers.add("Unidentified-Access-Key:" + Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+  /**
+   * Sends a message without waiting for the server's response, so that many
+   * sends can be in flight on this pipe at once.
+   *
+   * If the in-flight window is full, this call blocks until a slot frees up
+   * (or the request timeout elapses), which applies backpressure to the caller.
+   *
+   * @param list The encrypted messages to send.
+   * @param unidentifiedAccess The unidentified access credentials, if sending sealed sender.
+   * @return A future that completes with the server's response, or fails with an IOException.
+   * @throws IOException If the request could not be written to the pipe.
+   */
+  public ListenableFuture<SendMessageResponse> sendAsync(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess)
+      throws IOException
+  {
+    List<String> headers = new LinkedList<String>() {{
+      add("content-type:application/json");
+    }};
+
+    if (unidentifiedAccess.isPresent()) {
+      headers.add("Unidentified-Access-Key:" + Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+    }
+
+    WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
+                                                                    .setId(random.nextLong())
+                                                                    .setVerb("PUT")
+                                                                    .setPath(String.format("/v1/messages/%s", list.getDestination()))
+                                                                    .addAllHeaders(headers)
+                                                                    .setBody(ByteString.copyFrom(JsonUtil.toJson(list).getBytes()))
+                                                                    .build();
+
+    final SettableFuture<SendMessageResponse> result = new SettableFuture<>();
+
+    sendRequest(requestMessage).addListener(new ListenableFuture.Listener<Pair<Integer, String>>() {
+      @Override
+      public void onSuccess(Pair<Integer, String> response) {
+        try {
+          if (response.first() < 200 || response.first() >= 300) {
+            result.setException(new IOException("Non-successful response: " + response.first()));
+          } else if (Util.isEmpty(response.second())) {
+            result.set(new SendMessageResponse(false));
+          } else {
+            result.set(JsonUtil.fromJson(response.second(), SendMessageResponse.class));
+          }
+        } catch (IOException e) {
+          result.setException(e);
+        }
       }
 
-      WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
-                                                                      .setId(SecureRandom.getInstance("SHA1PRNG").nextLong())
-                                                                      .setVerb("PUT")
-                                                                      .setPath(String.format("/v1/messages/%s", list.getDestination()))
-                                                                      .addAllHeaders(headers)
-                                                                      .setBody(ByteString.copyFrom(JsonUtil.toJson(list).getBytes()))
-                                                                      .build();
+      @Override
+      public void onFailure(ExecutionException e) {
+        if (e.getCause() instanceof IOException) result.setException(e.getCause());
+        else                                     result.setException(new IOException(e.getCause()));
+      }
+    });
 
-      Pair<Integer, String> response = websocket.sendRequest(requestMessage).get(10, TimeUnit.SECONDS);
+    return result;
+  }
 
-      if (response.first() < 200 || response.first() >= 300) {
-        throw new IOException("Non-successful response: " + response.first());
+  /**
+   * Retrieves a profile, from the cache shared with the {@link SignalServiceMessageReceiver}
+   * that created this pipe if it was retrieved recently.
+   */
+  public SignalServiceProfile getProfile(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
+    ListenableFuture<SignalServiceProfile> future = profileCache.get(address, unidentifiedAccess, new ProfileCache.Fetcher() {
+      @Override
+      public ListenableFuture<SignalServiceProfile> fetch(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess)
+          throws IOException
+      {
+        return getProfileAsync(address, unidentifiedAccess);
       }
+    });
 
-      if (Util.isEmpty(response.second())) return new SendMessageResponse(false);
-      else                                 return JsonUtil.fromJson(response.second(), SendMessageResponse.class);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+    try {
+      return future.get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      else                                     throw new IOException(e);
+    } catch (InterruptedException | TimeoutException e) {
       throw new IOException(e);
     }
   }
 
-  public SignalServiceProfile getProfile(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
-    try {
-      List<String> headers = new LinkedList<>();
+  private ListenableFuture<SignalServiceProfile> getProfileAsync(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess)
+      throws IOException
+  {
+    List<String> headers = new LinkedList<>();
+
+    if (unidentifiedAccess.isPresent()) {
+      headers.add("Unidentified-Access-Key:" + Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+    }
 
-      if (unidentifiedAccess.isPresent()) {
-        headers.add("Unidentified-Access-Key:" + Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+    WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
+                                                                    .setId(random.nextLong())
+                                                                    .setVerb("GET")
+                                                                    .setPath(String.format("/v1/profile/%s", address.getNumber()))
+                                                                    .addAllHeaders(headers)
+                                                                    .build();
+
+    final SettableFuture<SignalServiceProfile> result = new SettableFuture<>();
+
+    sendRequest(requestMessage).addListener(new ListenableFuture.Listener<Pair<Integer, String>>() {
+      @Override
+      public void onSuccess(Pair<Integer, String> response) {
+        try {
+          if (response.first() < 200 || response.first() >= 300) {
+            result.setException(new IOException("Non-successful response: " + response.first()));
+          } else {
+            result.set(JsonUtil.fromJson(response.second(), SignalServiceProfile.class));
+          }
+        } catch (IOException e) {
+          result.setException(e);
+        }
       }
 
-      WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
-                                                                      .setId(SecureRandom.getInstance("SHA1PRNG").nextLong())
-                                                                      .setVerb("GET")
-                                                                      .setPath(String.format("/v1/profile/%s", address.getNumber()))
-                                                                      .addAllHeaders(headers)
-                                                                      .build();
+      @Override
+      public void onFailure(ExecutionException e) {
+        if (e.getCause() instanceof IOException) result.setException(e.getCause());
+        else                                     result.setException(new IOException(e.getCause()));
+      }
+    });
 
-      Pair<Integer, String> response = websocket.sendRequest(requestMessage).get(10, TimeUnit.SECONDS);
+    return result;
+  }
 
-      if (response.first() < 200 || response.first() >= 300) {
-        throw new IOException("Non-successful response: " + response.first());
-      }
+  /**
+   * The decoder for the current signaling key, rebuilt only if the key changes.
+   */
+  private SignalServiceEnvelopeDecoder getEnvelopeDecoder() throws IOException {
+    String                                     signalingKey = credentialsProvider.get().getSignalingKey();
+    Pair<String, SignalServiceEnvelopeDecoder> current      = envelopeDecoder;
 
-      return JsonUtil.fromJson(response.second(), SignalServiceProfile.class);
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new AssertionError(nsae);
-    } catch (InterruptedException | ExecutionException | TimeoutException e) {
-      throw new IOException(e);
+    if (current == null || !current.first().equals(signalingKey)) {
+      current         = new Pair<>(signalingKey, new SignalServiceEnvelopeDecoder(signalingKey));
+      envelopeDecoder = current;
     }
+
+    return current.second();
   }
 
   /**
    * Close this connection to the server.
    */
   public void shutdown() {
+    shutdown = true;
     websocket.disconnect();
+    timeoutExecutor.shutdownNow();
+  }
+
+  /**
+   * Writes a request to the websocket once there is room in the in-flight window.
+   * The slot is returned when the server responds, the connection fails, or the
+   * request times out.
+   */
+  private ListenableFuture<Pair<Integer, String>> sendRequest(final WebSocketRequestMessage requestMessage)
+      throws IOException
+  {
+    if (shutdown) {
+      throw new IOException("Pipe has been shut down");
+    }
+
+    try {
+      if (!inFlightRequests.tryAcquire(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        throw new IOException("Timed out waiting for an in-flight request slot");
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+
+    final ListenableFuture<Pair<Integer, String>> request;
+    final SettableFuture<Pair<Integer, String>>   response = new SettableFuture<>();
+    final AtomicBoolean                           released = new AtomicBoolean(false);
+    final long                                    sentTime = System.nanoTime();
+
+    try {
+      request = websocket.sendRequest(requestMessage);
+    } catch (IOException | RuntimeException e) {
+      inFlightRequests.release();
+      throw e;
+    }
+
+    final ScheduledFuture<?> timeout;
+
+    try {
+      timeout = timeoutExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (released.compareAndSet(false, true)) inFlightRequests.release();
+          response.setException(new TimeoutException("Request timed out"));
+          websocket.cancelRequest(requestMessage.getId());
+        }
+      }, REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      inFlightRequests.release();
+      websocket.cancelRequest(requestMessage.getId());
+      throw new IOException("Pipe has been shut down", e);
+    }
+
+    request.addListener(new ListenableFuture.Listener<Pair<Integer, String>>() {
+      @Override
+      public void onSuccess(Pair<Integer, String> result) {
+        release();
+        SignalServiceMetricsProvider.getProvider().recordTime(SignalServiceMetrics.WEBSOCKET_REQUEST_RTT, System.nanoTime() - sentTime);
+        response.set(result);
+      }
+
+      @Override
+      public void onFailure(ExecutionException e) {
+        release();
+        response.setException(e.getCause());
+      }
+
+      private void release() {
+        timeout.cancel(false);
+        if (released.compareAndSet(false, true)) inFlightRequests.release();
+      }
+    });
+
+    return response;
   }
 
   private boolean isSignalServiceEnvelope(WebSocketRequestMessage message) {
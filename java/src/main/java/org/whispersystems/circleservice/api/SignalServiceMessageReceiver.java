@@ -7,14 +7,17 @@
 package org.whispersystems.circleservice.api;
 
 import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.logging.Log;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.circleservice.api.crypto.AttachmentCipherInputStream;
+import org.whispersystems.circleservice.api.crypto.AttachmentCipherVerifyingOutputStream;
 import org.whispersystems.circleservice.api.crypto.ProfileCipherInputStream;
 import org.whispersystems.circleservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.circleservice.api.messages.SignalServiceAttachment.ProgressListener;
 import org.whispersystems.circleservice.api.messages.SignalServiceAttachmentPointer;
 import org.whispersystems.circleservice.api.messages.SignalServiceDataMessage;
 import org.whispersystems.circleservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.circleservice.api.profiles.ProfileCache;
 import org.whispersystems.circleservice.api.profiles.SignalServiceProfile;
 import org.whispersystems.circleservice.api.push.SignalServiceAddress;
 import org.whispersystems.circleservice.api.util.CredentialsProvider;
@@ -23,15 +26,23 @@ import org.whispersystems.circleservice.api.websocket.ConnectivityListener;
 import org.whispersystems.circleservice.internal.configuration.SignalServiceConfiguration;
 import org.whispersystems.circleservice.internal.push.PushServiceSocket;
 import org.whispersystems.circleservice.internal.push.SignalServiceEnvelopeEntity;
+import org.whispersystems.circleservice.internal.util.SpillingOutputStream;
 import org.whispersystems.circleservice.internal.util.StaticCredentialsProvider;
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
 import org.whispersystems.circleservice.internal.websocket.WebSocketConnection;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The primary interface for receiving Signal Service messages.
@@ -41,12 +52,19 @@ import java.util.List;
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 public class SignalServiceMessageReceiver {
 
+  private static final String TAG = SignalServiceMessageReceiver.class.getSimpleName();
+
+  private static final int  MAX_IN_FLIGHT_ACKS     = 16;
+  private static final long ACK_FLUSH_DELAY_MILLIS = 100;
+  private static final long PROFILE_TIMEOUT_MILLIS = ProfileCache.DEFAULT_FETCH_TIMEOUT_MILLIS;
+
   private final PushServiceSocket          socket;
   private final SignalServiceConfiguration urls;
   private final CredentialsProvider        credentialsProvider;
   private final String                     userAgent;
   private final ConnectivityListener       connectivityListener;
   private final SleepTimer                 sleepTimer;
+  private final ProfileCache               profileCache;
 
   /**
    * Construct a SignalServiceMessageReceiver.
@@ -76,13 +94,24 @@ public class SignalServiceMessageReceiver {
                                       String userAgent,
                                       ConnectivityListener listener,
                                       SleepTimer timer)
+  {
+    this(urls, credentials, new PushServiceSocket(urls, credentials, userAgent), userAgent, listener, timer);
+  }
+
+  SignalServiceMessageReceiver(SignalServiceConfiguration urls,
+                               CredentialsProvider credentials,
+                               PushServiceSocket socket,
+                               String userAgent,
+                               ConnectivityListener listener,
+                               SleepTimer timer)
   {
     this.urls                 = urls;
     this.credentialsProvider  = credentials;
-    this.socket               = new PushServiceSocket(urls, credentials, userAgent);
+    this.socket               = socket;
     this.userAgent            = userAgent;
     this.connectivityListener = listener;
     this.sleepTimer           = timer;
+    this.profileCache         = new ProfileCache(ProfileCache.DEFAULT_MAX_SIZE, ProfileCache.DEFAULT_TTL_MILLIS);
   }
 
   /**
@@ -102,10 +131,52 @@ public class SignalServiceMessageReceiver {
     return retrieveAttachment(pointer, destination, maxSizeBytes, null);
   }
 
+  /**
+   * Retrieves a profile, from the cache if it was retrieved recently.  Concurrent calls for
+   * the same address share a single request.
+   */
   public SignalServiceProfile retrieveProfile(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess)
     throws IOException
   {
-    return socket.retrieveProfile(address, unidentifiedAccess);
+    return getProfile(retrieveProfileAsync(address, unidentifiedAccess));
+  }
+
+  /**
+   * Retrieves many profiles at once.  Cache misses are requested concurrently.
+   *
+   * @param addresses The profiles to retrieve, all with identified access.
+   * @return The profiles that were retrieved.  Addresses whose lookup failed are absent.
+   */
+  public Map<SignalServiceAddress, SignalServiceProfile> retrieveProfiles(Collection<SignalServiceAddress> addresses) {
+    Map<SignalServiceAddress, ListenableFuture<SignalServiceProfile>> futures = new LinkedHashMap<>();
+    Map<SignalServiceAddress, SignalServiceProfile>                   results = new LinkedHashMap<>();
+
+    for (SignalServiceAddress address : addresses) {
+      futures.put(address, retrieveProfileAsync(address, Optional.<UnidentifiedAccess>absent()));
+    }
+
+    for (Map.Entry<SignalServiceAddress, ListenableFuture<SignalServiceProfile>> future : futures.entrySet()) {
+      try {
+        results.put(future.getKey(), getProfile(future.getValue()));
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to retrieve profile for " + future.getKey().getNumber(), e);
+      }
+    }
+
+    return results;
+  }
+
+  public ListenableFuture<SignalServiceProfile> retrieveProfileAsync(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess) {
+    return profileCache.get(address, unidentifiedAccess, new ProfileCache.Fetcher() {
+      @Override
+      public ListenableFuture<SignalServiceProfile> fetch(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess) {
+        return socket.retrieveProfileAsync(address, unidentifiedAccess);
+      }
+    });
+  }
+
+  public void invalidateProfile(SignalServiceAddress address) {
+    profileCache.invalidate(address);
   }
 
   public InputStream retrieveProfileAvatar(String path, File destination, byte[] profileKey, int maxSizeBytes)
@@ -136,6 +207,69 @@ public class SignalServiceMessageReceiver {
     return AttachmentCipherInputStream.createFor(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
   }
 
+  /**
+   * Retrieves a SignalServiceAttachment, decrypting it to a plaintext file in a single pass.
+   *
+   * @param pointer The {@link SignalServiceAttachmentPointer}
+   *                received in a {@link SignalServiceDataMessage}.
+   * @param destination The download destination for the encrypted attachment.
+   * @param plaintextDestination Where to write the decrypted attachment once it's verified.
+   * @param maxSizeBytes The maximum size of the encrypted attachment to download.
+   * @param listener An optional listener (may be null) to receive callbacks on download progress.
+   *
+   * @return An InputStream that streams the plaintext attachment contents.
+   * @throws IOException
+   * @throws InvalidMessageException
+   */
+  public InputStream retrieveAttachment(SignalServiceAttachmentPointer pointer, File destination, File plaintextDestination, int maxSizeBytes, ProgressListener listener)
+      throws IOException, InvalidMessageException
+  {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    socket.retrieveAttachment(pointer.getId(), destination, maxSizeBytes, listener);
+    return AttachmentCipherInputStream.createFor(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get(), plaintextDestination);
+  }
+
+  /**
+   * Retrieves a SignalServiceAttachment, decrypting it while it downloads.
+   *
+   * The plaintext is buffered in memory, spilling to a temporary file in spillDirectory
+   * only if it grows past maxMemoryBytes, and is handed back once the attachment's MAC
+   * and digest have been verified.
+   *
+   * @param pointer The {@link SignalServiceAttachmentPointer}
+   *                received in a {@link SignalServiceDataMessage}.
+   * @param spillDirectory Where to put the temporary file for large attachments.
+   * @param maxMemoryBytes The largest plaintext to hold in memory.
+   * @param maxSizeBytes The maximum size of the encrypted attachment to download.
+   * @param listener An optional listener (may be null) to receive callbacks on download progress.
+   *
+   * @return An InputStream that streams the plaintext attachment contents.
+   * @throws IOException
+   * @throws InvalidMessageException
+   */
+  public InputStream retrieveAttachmentStream(SignalServiceAttachmentPointer pointer, File spillDirectory, int maxMemoryBytes, int maxSizeBytes, ProgressListener listener)
+      throws IOException, InvalidMessageException
+  {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    SpillingOutputStream plaintext = new SpillingOutputStream(maxMemoryBytes, spillDirectory);
+    boolean              verified  = false;
+
+    try {
+      AttachmentCipherVerifyingOutputStream ciphertext = new AttachmentCipherVerifyingOutputStream(plaintext, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
+
+      socket.retrieveAttachment(pointer.getId(), ciphertext, maxSizeBytes, listener);
+      ciphertext.finish();
+      plaintext.close();
+
+      verified = true;
+      return plaintext.getInputStream();
+    } finally {
+      if (!verified) plaintext.discard();
+    }
+  }
+
   /**
    * Creates a pipe for receiving SignalService messages.
    *
@@ -144,21 +278,38 @@ public class SignalServiceMessageReceiver {
    * @return A SignalServiceMessagePipe for receiving Signal Service messages.
    */
   public SignalServiceMessagePipe createMessagePipe() {
+    return createMessagePipe(SignalServiceMessagePipe.DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+  }
+
+  /**
+   * Creates a pipe for receiving SignalService messages.
+   *
+   * Callers must call {@link SignalServiceMessagePipe#shutdown()} when finished with the pipe.
+   *
+   * @param maxInFlightRequests The maximum number of requests that may be awaiting a
+   *                            response on the pipe at once.
+   * @return A SignalServiceMessagePipe for receiving Signal Service messages.
+   */
+  public SignalServiceMessagePipe createMessagePipe(int maxInFlightRequests) {
     WebSocketConnection webSocket = new WebSocketConnection(urls.getSignalServiceUrls()[0].getUrl(),
                                                             urls.getSignalServiceUrls()[0].getTrustStore(),
                                                             Optional.of(credentialsProvider), userAgent, connectivityListener,
                                                             sleepTimer);
 
-    return new SignalServiceMessagePipe(webSocket, Optional.of(credentialsProvider));
+    return new SignalServiceMessagePipe(webSocket, Optional.of(credentialsProvider), maxInFlightRequests, profileCache);
   }
 
   public SignalServiceMessagePipe createUnidentifiedMessagePipe() {
+    return createUnidentifiedMessagePipe(SignalServiceMessagePipe.DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+  }
+
+  public SignalServiceMessagePipe createUnidentifiedMessagePipe(int maxInFlightRequests) {
     WebSocketConnection webSocket = new WebSocketConnection(urls.getSignalServiceUrls()[0].getUrl(),
                                                             urls.getSignalServiceUrls()[0].getTrustStore(),
                                                             Optional.<CredentialsProvider>absent(), userAgent, connectivityListener,
                                                             sleepTimer);
 
-    return new SignalServiceMessagePipe(webSocket, Optional.of(credentialsProvider));
+    return new SignalServiceMessagePipe(webSocket, Optional.of(credentialsProvider), maxInFlightRequests, profileCache);
   }
 
   public List<SignalServiceEnvelope> retrieveMessages() throws IOException {
@@ -172,18 +323,7 @@ public class SignalServiceMessageReceiver {
     List<SignalServiceEnvelopeEntity> entities = socket.getMessages();
 
     for (SignalServiceEnvelopeEntity entity : entities) {
-      SignalServiceEnvelope envelope;
-
-      if (entity.getSource() != null && entity.getSourceDevice() > 0) {
-        envelope = new SignalServiceEnvelope(entity.getType(), entity.getSource(),
-                                             entity.getSourceDevice(), entity.getTimestamp(),
-                                             entity.getMessage(), entity.getContent(),
-                                             entity.getServerTimestamp(), entity.getServerUuid());
-      } else {
-        envelope = new SignalServiceEnvelope(entity.getType(), entity.getTimestamp(),
-                                             entity.getMessage(), entity.getContent(),
-                                             entity.getServerTimestamp(), entity.getServerUuid());
-      }
+      SignalServiceEnvelope envelope = createEnvelope(entity);
 
       callback.onMessage(envelope);
       results.add(envelope);
@@ -195,6 +335,100 @@ public class SignalServiceMessageReceiver {
     return results;
   }
 
+  /**
+   * Retrieve every queued message without holding them in memory.  Each envelope is
+   * handed to the callback as soon as it has been parsed off the wire, and once the
+   * callback returns it's acknowledged in the background, in pipelined batches with at
+   * most {@link #MAX_IN_FLIGHT_ACKS} outstanding acknowledgements.  Pages are requested
+   * until the server's queue has been drained.
+   *
+   * @param callback Receives each envelope, in the order the server delivers them.
+   * @return The number of envelopes received.
+   * @throws IOException If a page can't be fetched or an envelope can't be acknowledged.
+   */
+  public int retrieveMessagesStreaming(final MessageReceivedCallback callback)
+      throws IOException
+  {
+    final SignalServiceMessageAcknowledger acknowledger = new SignalServiceMessageAcknowledger(socket, MAX_IN_FLIGHT_ACKS, ACK_FLUSH_DELAY_MILLIS, MAX_IN_FLIGHT_ACKS);
+    final int[]                            received     = new int[1];
+
+    int     total = 0;
+    boolean more;
+
+    try {
+      do {
+        received[0] = 0;
+
+        more = socket.getMessages(new PushServiceSocket.MessageEntityListener() {
+          @Override
+          public void onMessage(SignalServiceEnvelopeEntity entity) throws IOException {
+            SignalServiceEnvelope envelope = createEnvelope(entity);
+
+            callback.onMessage(envelope);
+            acknowledger.acknowledge(envelope);
+            received[0]++;
+          }
+        });
+
+        // The server only pages past messages that have been acknowledged.
+        acknowledger.flush();
+
+        total += received[0];
+      } while (more && received[0] > 0);
+    } catch (Throwable t) {
+      // Still acknowledge what was handled, but report the original failure.
+      shutdownQuietly(acknowledger);
+      throw t;
+    }
+
+    acknowledger.shutdown();
+
+    return total;
+  }
+
+  /**
+   * Create an acknowledger that batches REST acknowledgements, for callers that
+   * process messages from {@link #retrieveMessages()} asynchronously.  Only hand it an
+   * envelope once that message has been durably handled.
+   *
+   * @param maxBatchSize The number of queued acknowledgements that triggers a flush.
+   * @param maxDelayMillis The longest an acknowledgement may wait before it's flushed.
+   */
+  public SignalServiceMessageAcknowledger createMessageAcknowledger(int maxBatchSize, long maxDelayMillis) {
+    return new SignalServiceMessageAcknowledger(socket, maxBatchSize, maxDelayMillis, MAX_IN_FLIGHT_ACKS);
+  }
+
+  private static void shutdownQuietly(SignalServiceMessageAcknowledger acknowledger) {
+    try {
+      acknowledger.shutdown();
+    } catch (IOException e) {
+      Log.w(TAG, "Acknowledgement failed after an earlier failure", e);
+    }
+  }
+
+  private SignalServiceEnvelope createEnvelope(SignalServiceEnvelopeEntity entity) {
+    if (entity.getSource() != null && entity.getSourceDevice() > 0) {
+      return new SignalServiceEnvelope(entity.getType(), entity.getSource(),
+                                       entity.getSourceDevice(), entity.getTimestamp(),
+                                       entity.getMessage(), entity.getContent(),
+                                       entity.getServerTimestamp(), entity.getServerUuid());
+    } else {
+      return new SignalServiceEnvelope(entity.getType(), entity.getTimestamp(),
+                                       entity.getMessage(), entity.getContent(),
+                                       entity.getServerTimestamp(), entity.getServerUuid());
+    }
+  }
+
+  private SignalServiceProfile getProfile(ListenableFuture<SignalServiceProfile> future) throws IOException {
+    try {
+      return future.get(PROFILE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      else                                     throw new IOException(e.getCause());
+    } catch (InterruptedException | TimeoutException e) {
+      throw new IOException(e);
+    }
+  }
 
   public interface MessageReceivedCallback {
     public void onMessage(SignalServiceEnvelope envelope);
@@ -38,6 +38,8 @@ import org.whispersystems.circleservice.api.messages.multidevice.ReadMessage;
 import org.whispersystems.circleservice.api.messages.multidevice.SignalServiceSyncMessage;
 import org.whispersystems.circleservice.api.messages.multidevice.VerifiedMessage;
 import org.whispersystems.circleservice.api.messages.shared.SharedContact;
+import org.whispersystems.circleservice.api.metrics.SignalServiceMetrics;
+import org.whispersystems.circleservice.api.metrics.SignalServiceMetricsProvider;
 import org.whispersystems.circleservice.api.push.SignalServiceAddress;
 import org.whispersystems.circleservice.api.push.exceptions.AuthorizationFailedException;
 import org.whispersystems.circleservice.api.push.exceptions.PushNetworkException;
@@ -71,12 +73,22 @@ import org.whispersystems.circleservice.internal.util.Util;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The main interface for sending Signal Service messages.
@@ -90,11 +102,14 @@ public class SignalServiceMessageSender {
   private final PushServiceSocket                                   socket;
   private final SignalProtocolStore                                 store;
   private final SignalServiceAddress                                localAddress;
+  private final SignalServiceCipher                                 cipher;
   private final Optional<EventListener>                             eventListener;
 
   private final AtomicReference<Optional<SignalServiceMessagePipe>> pipe;
   private final AtomicReference<Optional<SignalServiceMessagePipe>> unidentifiedPipe;
   private final AtomicBoolean                                       isMultiDevice;
+  private final AtomicReference<Optional<ExecutorService>>          fanOutExecutor;
+  private final Map<String, SessionLock>                            sessionLocks = new HashMap<>();
 
   /**
    * Construct a SignalServiceMessageSender.
@@ -130,10 +145,12 @@ public class SignalServiceMessageSender {
     this.socket           = new PushServiceSocket(urls, credentialsProvider, userAgent);
     this.store            = store;
     this.localAddress     = new SignalServiceAddress(credentialsProvider.getUser());
+    this.cipher           = new SignalServiceCipher(localAddress, store, null);
     this.pipe             = new AtomicReference<>(pipe);
     this.unidentifiedPipe = new AtomicReference<>(unidentifiedPipe);
     this.isMultiDevice    = new AtomicBoolean(isMultiDevice);
     this.eventListener    = eventListener;
+    this.fanOutExecutor   = new AtomicReference<>(Optional.<ExecutorService>absent());
   }
 
   /**
@@ -222,6 +239,7 @@ public class SignalServiceMessageSender {
 
     if (message.isEndSession()) {
       store.deleteAllSessions(recipient.getNumber());
+      cipher.invalidate(recipient.getNumber());
 
       if (eventListener.isPresent()) {
         eventListener.get().onSecurityEvent(recipient);
@@ -306,6 +324,23 @@ public class SignalServiceMessageSender {
     this.isMultiDevice.set(isMultiDevice);
   }
 
+  /**
+   * Enables parallel fan-out for multi-recipient sends.
+   *
+   * When set, group sends encrypt and transmit to each recipient as a separate task on
+   * the supplied executor, and the results are returned in the same order as the
+   * recipients.  Sends to the same number are always performed sequentially.  The
+   * executor bounds the number of recipients in flight, so a fixed size pool
+   * (eg {@link java.util.concurrent.Executors#newFixedThreadPool(int)}) is recommended.
+   *
+   * The {@link SignalProtocolStore} must be safe for concurrent use when fan-out is enabled.
+   *
+   * @param executor The executor to fan out on, or null to send sequentially.
+   */
+  public void setFanOutExecutor(ExecutorService executor) {
+    this.fanOutExecutor.set(Optional.fromNullable(executor));
+  }
+
   private void sendMessage(VerifiedMessage message, Optional<UnidentifiedAccessPair> unidentifiedAccess)
       throws IOException, UntrustedIdentityException
   {
@@ -721,29 +756,95 @@ public class SignalServiceMessageSender {
                                               boolean                            online)
       throws IOException
   {
+    Optional<ExecutorService> executor = this.fanOutExecutor.get();
+
+    if (executor.isPresent() && recipients.size() > 1) {
+      prefetchMissingSessions(executor.get(), recipients, unidentifiedAccess);
+      return sendMessageInParallel(executor.get(), recipients, unidentifiedAccess, timestamp, content, online);
+    }
+
     List<SendMessageResult>                results                    = new LinkedList<>();
     Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
     Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
 
     while (recipientIterator.hasNext()) {
-      SignalServiceAddress recipient = recipientIterator.next();
+      results.add(sendMessageCatchingFailures(recipientIterator.next(), unidentifiedAccessIterator.next(), timestamp, content, online));
+    }
 
-      try {
-        SendMessageResult result = sendMessage(recipient, unidentifiedAccessIterator.next(), timestamp, content, online);
-        results.add(result);
-      } catch (UntrustedIdentityException e) {
-        Log.w(TAG, e);
-        results.add(SendMessageResult.identityFailure(recipient, e.getIdentityKey()));
-      } catch (UnregisteredUserException e) {
-        Log.w(TAG, e);
-        results.add(SendMessageResult.unregisteredFailure(recipient));
-      } catch (PushNetworkException e) {
-        Log.w(TAG, e);
-        results.add(SendMessageResult.networkFailure(recipient));
+    return results;
+  }
+
+  private List<SendMessageResult> sendMessageInParallel(ExecutorService                    executor,
+                                                        List<SignalServiceAddress>         recipients,
+                                                        List<Optional<UnidentifiedAccess>> unidentifiedAccess,
+                                                        long                               timestamp,
+                                                        byte[]                             content,
+                                                        boolean                            online)
+      throws IOException
+  {
+    List<SignalServiceAddress>         recipientList          = new ArrayList<>(recipients);
+    List<Optional<UnidentifiedAccess>> unidentifiedAccessList = new ArrayList<>(unidentifiedAccess);
+    SendMessageResult[]                results                = new SendMessageResult[recipientList.size()];
+    Map<String, List<Integer>>         indexesByNumber        = new LinkedHashMap<>();
+
+    for (int i=0;i<recipientList.size();i++) {
+      String        number  = recipientList.get(i).getNumber();
+      List<Integer> indexes = indexesByNumber.get(number);
+
+      if (indexes == null) {
+        indexes = new LinkedList<>();
+        indexesByNumber.put(number, indexes);
       }
+
+      indexes.add(i);
     }
 
-    return results;
+    List<Future<Void>> futures = new LinkedList<>();
+
+    try {
+      for (List<Integer> indexes : indexesByNumber.values()) {
+        futures.add(executor.submit(new RecipientSendTask(indexes, recipientList, unidentifiedAccessList,
+                                                          results, timestamp, content, online)));
+      }
+
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if      (e.getCause() instanceof IOException)      throw (IOException)e.getCause();
+      else if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      else if (e.getCause() instanceof Error)            throw (Error)e.getCause();
+      else                                               throw new IOException(e.getCause());
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(false);
+      }
+    }
+
+    return Arrays.asList(results);
+  }
+
+  private SendMessageResult sendMessageCatchingFailures(SignalServiceAddress         recipient,
+                                                        Optional<UnidentifiedAccess> unidentifiedAccess,
+                                                        long                         timestamp,
+                                                        byte[]                       content,
+                                                        boolean                      online)
+      throws IOException
+  {
+    try {
+      return sendMessage(recipient, unidentifiedAccess, timestamp, content, online);
+    } catch (UntrustedIdentityException e) {
+      Log.w(TAG, e);
+      return SendMessageResult.identityFailure(recipient, e.getIdentityKey());
+    } catch (UnregisteredUserException e) {
+      Log.w(TAG, e);
+      return SendMessageResult.unregisteredFailure(recipient);
+    } catch (PushNetworkException e) {
+      Log.w(TAG, e);
+      return SendMessageResult.networkFailure(recipient);
+    }
   }
 
   private SendMessageResult sendMessage(SignalServiceAddress         recipient,
@@ -763,6 +864,7 @@ public class SignalServiceMessageSender {
           try {
             Log.w(TAG, "Transmitting over pipe...");
             SendMessageResponse response = pipe.get().send(messages, Optional.<UnidentifiedAccess>absent());
+            SignalServiceMetricsProvider.getProvider().increment(SignalServiceMetrics.TRANSPORT_PIPE);
             return SendMessageResult.success(recipient, false, response.getNeedsSync());
           } catch (IOException e) {
             Log.w(TAG, e);
@@ -772,6 +874,7 @@ public class SignalServiceMessageSender {
           try {
             Log.w(TAG, "Transmitting over unidentified pipe...");
             SendMessageResponse response = unidentifiedPipe.get().send(messages, unidentifiedAccess);
+            SignalServiceMetricsProvider.getProvider().increment(SignalServiceMetrics.TRANSPORT_UNIDENTIFIED_PIPE);
             return SendMessageResult.success(recipient, true, response.getNeedsSync());
           } catch (IOException e) {
             Log.w(TAG, e);
@@ -781,6 +884,7 @@ public class SignalServiceMessageSender {
 
         Log.w(TAG, "Not transmitting over pipe...");
         SendMessageResponse response = socket.sendMessage(messages, unidentifiedAccess);
+        SignalServiceMetricsProvider.getProvider().increment(SignalServiceMetrics.TRANSPORT_REST);
         return SendMessageResult.success(recipient, unidentifiedAccess.isPresent(), response.getNeedsSync());
 
       } catch (InvalidKeyException ike) {
@@ -795,9 +899,11 @@ public class SignalServiceMessageSender {
         }
       } catch (MismatchedDevicesException mde) {
         Log.w(TAG, mde);
+        SignalServiceMetricsProvider.getProvider().increment(SignalServiceMetrics.RETRY_MISMATCHED_DEVICES);
         handleMismatchedDevices(socket, recipient, mde.getMismatchedDevices());
       } catch (StaleDevicesException ste) {
         Log.w(TAG, ste);
+        SignalServiceMetricsProvider.getProvider().increment(SignalServiceMetrics.RETRY_STALE_DEVICES);
         handleStaleDevices(recipient, ste.getStaleDevices());
       }
     }
@@ -899,34 +1005,117 @@ public class SignalServiceMessageSender {
       throws IOException, InvalidKeyException, UntrustedIdentityException
   {
     SignalProtocolAddress signalProtocolAddress = new SignalProtocolAddress(recipient.getNumber(), deviceId);
-    SignalServiceCipher   cipher                = new SignalServiceCipher(localAddress, store, null);
 
     if (!store.containsSession(signalProtocolAddress)) {
-      try {
-        List<PreKeyBundle> preKeys = socket.getPreKeys(recipient, unidentifiedAccess, deviceId);
-
-        for (PreKeyBundle preKey : preKeys) {
-          try {
-            SignalProtocolAddress preKeyAddress  = new SignalProtocolAddress(recipient.getNumber(), preKey.getDeviceId());
-            SessionBuilder        sessionBuilder = new SessionBuilder(store, preKeyAddress);
-            sessionBuilder.process(preKey);
-          } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
-            throw new UntrustedIdentityException("Untrusted identity key!", recipient.getNumber(), preKey.getIdentityKey());
-          }
-        }
-
-        if (eventListener.isPresent()) {
-          eventListener.get().onSecurityEvent(recipient);
-        }
-      } catch (InvalidKeyException e) {
-        throw new IOException(e);
-      }
+      establishSession(socket, recipient, unidentifiedAccess, deviceId);
     }
 
+    long startTime = System.nanoTime();
+
     try {
       return cipher.encrypt(signalProtocolAddress, unidentifiedAccess, plaintext);
     } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
       throw new UntrustedIdentityException("Untrusted on send", recipient.getNumber(), e.getUntrustedIdentity());
+    } finally {
+      SignalServiceMetricsProvider.getProvider().recordTime(SignalServiceMetrics.ENCRYPT_TIME, System.nanoTime() - startTime);
+    }
+  }
+
+  private void establishSession(PushServiceSocket            socket,
+                                SignalServiceAddress         recipient,
+                                Optional<UnidentifiedAccess> unidentifiedAccess,
+                                int                          deviceId)
+      throws IOException, UntrustedIdentityException
+  {
+    SessionLock lock = acquireSessionLock(recipient);
+
+    try {
+      if (!store.containsSession(new SignalProtocolAddress(recipient.getNumber(), deviceId))) {
+        fetchAndBuildSessions(socket, recipient, unidentifiedAccess, deviceId);
+      }
+    } finally {
+      releaseSessionLock(recipient, lock);
+    }
+  }
+
+  private void fetchAndBuildSessions(PushServiceSocket            socket,
+                                     SignalServiceAddress         recipient,
+                                     Optional<UnidentifiedAccess> unidentifiedAccess,
+                                     int                          deviceId)
+      throws IOException, UntrustedIdentityException
+  {
+    long startTime = System.nanoTime();
+
+    try {
+      List<PreKeyBundle> preKeys = socket.getPreKeys(recipient, unidentifiedAccess, deviceId);
+
+      for (PreKeyBundle preKey : preKeys) {
+        try {
+          SignalProtocolAddress preKeyAddress  = new SignalProtocolAddress(recipient.getNumber(), preKey.getDeviceId());
+          SessionBuilder        sessionBuilder = new SessionBuilder(store, preKeyAddress);
+          sessionBuilder.process(preKey);
+        } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
+          throw new UntrustedIdentityException("Untrusted identity key!", recipient.getNumber(), preKey.getIdentityKey());
+        }
+      }
+
+      if (eventListener.isPresent()) {
+        eventListener.get().onSecurityEvent(recipient);
+      }
+    } catch (InvalidKeyException e) {
+      throw new IOException(e);
+    } finally {
+      SignalServiceMetricsProvider.getProvider().recordTime(SignalServiceMetrics.PREKEY_FETCH_TIME, System.nanoTime() - startTime);
+    }
+  }
+
+  /**
+   * Fetches prekeys and builds sessions, in parallel, for every recipient we don't yet
+   * have a session with, so that the fan-out which follows doesn't pay for one serial
+   * prekey round trip per new recipient.  Failures are only logged here; the send to
+   * that recipient will retry and report them.
+   */
+  private void prefetchMissingSessions(ExecutorService                    executor,
+                                       List<SignalServiceAddress>         recipients,
+                                       List<Optional<UnidentifiedAccess>> unidentifiedAccess)
+  {
+    Map<String, Future<Void>>              futures                    = new LinkedHashMap<>();
+    Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
+    Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
+
+    while (recipientIterator.hasNext()) {
+      final SignalServiceAddress         recipient = recipientIterator.next();
+      final Optional<UnidentifiedAccess> access    = unidentifiedAccessIterator.next();
+
+      SignalProtocolAddress address = new SignalProtocolAddress(recipient.getNumber(), SignalServiceAddress.DEFAULT_DEVICE_ID);
+
+      if (futures.containsKey(recipient.getNumber()))            continue;
+      if (recipient.equals(localAddress) && !access.isPresent()) continue;
+      if (store.containsSession(address))                        continue;
+
+      futures.put(recipient.getNumber(), executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          establishSession(socket, recipient, access, SignalServiceAddress.DEFAULT_DEVICE_ID);
+          return null;
+        }
+      }));
+    }
+
+    if (!futures.isEmpty()) {
+      Log.w(TAG, "Prefetching sessions for " + futures.size() + " recipients...");
+    }
+
+    for (Map.Entry<String, Future<Void>> future : futures.entrySet()) {
+      try {
+        future.getValue().get();
+      } catch (InterruptedException e) {
+        Log.w(TAG, e);
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        Log.w(TAG, "Session prefetch failed for " + future.getKey(), e.getCause());
+      }
     }
   }
 
@@ -934,16 +1123,24 @@ public class SignalServiceMessageSender {
                                        MismatchedDevices mismatchedDevices)
       throws IOException, UntrustedIdentityException
   {
+    SessionLock lock = acquireSessionLock(recipient);
+
     try {
       for (int extraDeviceId : mismatchedDevices.getExtraDevices()) {
-        store.deleteSession(new SignalProtocolAddress(recipient.getNumber(), extraDeviceId));
+        SignalProtocolAddress extraAddress = new SignalProtocolAddress(recipient.getNumber(), extraDeviceId);
+        store.deleteSession(extraAddress);
+        cipher.invalidate(extraAddress);
       }
 
       for (int missingDeviceId : mismatchedDevices.getMissingDevices()) {
+        SignalProtocolAddress missingAddress = new SignalProtocolAddress(recipient.getNumber(), missingDeviceId);
+
+        if (store.containsSession(missingAddress)) continue;
+
         PreKeyBundle preKey = socket.getPreKey(recipient, missingDeviceId);
 
         try {
-          SessionBuilder sessionBuilder = new SessionBuilder(store, new SignalProtocolAddress(recipient.getNumber(), missingDeviceId));
+          SessionBuilder sessionBuilder = new SessionBuilder(store, missingAddress);
           sessionBuilder.process(preKey);
         } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
           throw new UntrustedIdentityException("Untrusted identity key!", recipient.getNumber(), preKey.getIdentityKey());
@@ -951,12 +1148,49 @@ public class SignalServiceMessageSender {
       }
     } catch (InvalidKeyException e) {
       throw new IOException(e);
+    } finally {
+      releaseSessionLock(recipient, lock);
+    }
+  }
+
+  /**
+   * Serializes session setup for a recipient.  A sender that finds another sender already
+   * fetching prekeys for the same number waits for it, then re-checks the store, so it
+   * reuses the session that was just built rather than consuming another one-time prekey.
+   */
+  private SessionLock acquireSessionLock(SignalServiceAddress recipient) {
+    SessionLock lock;
+
+    synchronized (sessionLocks) {
+      lock = sessionLocks.get(recipient.getNumber());
+
+      if (lock == null) {
+        lock = new SessionLock();
+        sessionLocks.put(recipient.getNumber(), lock);
+      }
+
+      lock.users++;
+    }
+
+    lock.lock();
+    return lock;
+  }
+
+  private void releaseSessionLock(SignalServiceAddress recipient, SessionLock lock) {
+    lock.unlock();
+
+    synchronized (sessionLocks) {
+      if (--lock.users == 0) {
+        sessionLocks.remove(recipient.getNumber());
+      }
     }
   }
 
   private void handleStaleDevices(SignalServiceAddress recipient, StaleDevices staleDevices) {
     for (int staleDeviceId : staleDevices.getStaleDevices()) {
-      store.deleteSession(new SignalProtocolAddress(recipient.getNumber(), staleDeviceId));
+      SignalProtocolAddress staleAddress = new SignalProtocolAddress(recipient.getNumber(), staleDeviceId);
+      store.deleteSession(staleAddress);
+      cipher.invalidate(staleAddress);
     }
   }
 
@@ -997,6 +1231,51 @@ public class SignalServiceMessageSender {
     return Optional.absent();
   }
 
+  /**
+   * Sends to every position of a single number in the recipient list, in order, so that
+   * the sessions for that number are never touched by two fan-out threads at once.
+   */
+  private class RecipientSendTask implements Callable<Void> {
+
+    private final List<Integer>                      indexes;
+    private final List<SignalServiceAddress>         recipients;
+    private final List<Optional<UnidentifiedAccess>> unidentifiedAccess;
+    private final SendMessageResult[]                results;
+    private final long                               timestamp;
+    private final byte[]                             content;
+    private final boolean                            online;
+
+    private RecipientSendTask(List<Integer>                      indexes,
+                              List<SignalServiceAddress>         recipients,
+                              List<Optional<UnidentifiedAccess>> unidentifiedAccess,
+                              SendMessageResult[]                results,
+                              long                               timestamp,
+                              byte[]                             content,
+                              boolean                            online)
+    {
+      this.indexes            = indexes;
+      this.recipients         = recipients;
+      this.unidentifiedAccess = unidentifiedAccess;
+      this.results            = results;
+      this.timestamp          = timestamp;
+      this.content            = content;
+      this.online             = online;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      for (int index : indexes) {
+        results[index] = sendMessageCatchingFailures(recipients.get(index), unidentifiedAccess.get(index), timestamp, content, online);
+      }
+
+      return null;
+    }
+  }
+
+  private static class SessionLock extends ReentrantLock {
+    private int users;
+  }
+
   public static interface EventListener {
     public void onSecurityEvent(SignalServiceAddress address);
   }
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.api;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.circleservice.api.crypto.SignalServiceCipher;
+import org.whispersystems.circleservice.api.messages.SignalServiceContent;
+import org.whispersystems.circleservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.circleservice.api.messages.SignalServiceEnvelopeDecoder;
+import org.whispersystems.circleservice.internal.websocket.WebSocketConnection;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.whispersystems.circleservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+import static org.whispersystems.circleservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
+
+/**
+ * Continuously reads envelopes off a {@link SignalServiceMessagePipe} and decrypts them
+ * on a pool of workers.
+ *
+ * Envelopes that name their sender are partitioned across the workers by sender, so those
+ * messages from one sender are decrypted and delivered in the order they arrived, while
+ * different senders are decrypted in parallel.  Sealed sender envelopes don't reveal their
+ * sender until they're decrypted, so they are spread across the workers individually and
+ * carry no ordering guarantee, either among themselves or relative to a sender's unsealed
+ * messages.
+ *
+ * Each envelope is acknowledged to the server only after the callback for it returns.
+ * If the callback throws, the envelope is not acknowledged and will be redelivered.
+ */
+public class SignalServiceStreamingReceiver {
+
+  private static final String TAG = SignalServiceStreamingReceiver.class.getSimpleName();
+
+  private static final int  WORKER_QUEUE_CAPACITY = 100;
+  private static final long READ_TIMEOUT_MILLIS   = TimeUnit.SECONDS.toMillis(60);
+  private static final long ENQUEUE_POLL_MILLIS   = TimeUnit.SECONDS.toMillis(1);
+
+  private final WebSocketConnection          websocket;
+  private final SignalServiceEnvelopeDecoder decoder;
+  private final SignalServiceCipher          cipher;
+  private final DecryptedMessageCallback     callback;
+  private final Worker[]                     workers;
+  private final Thread                       reader;
+  private final AtomicBoolean                stopped = new AtomicBoolean(false);
+
+  SignalServiceStreamingReceiver(WebSocketConnection          websocket,
+                                 SignalServiceEnvelopeDecoder decoder,
+                                 SignalServiceCipher          cipher,
+                                 int                          workerCount,
+                                 DecryptedMessageCallback     callback)
+  {
+    if (workerCount < 1) {
+      throw new IllegalArgumentException("workerCount must be at least 1");
+    }
+
+    this.websocket    = websocket;
+    this.decoder      = decoder;
+    this.cipher       = cipher;
+    this.callback     = callback;
+    this.workers      = new Worker[workerCount];
+    this.reader       = new Reader();
+
+    for (int i=0;i<workers.length;i++) {
+      workers[i] = new Worker(i);
+    }
+  }
+
+  void start() {
+    for (Worker worker : workers) {
+      worker.start();
+    }
+
+    reader.start();
+  }
+
+  /**
+   * Stop reading from the pipe.  Envelopes that have already been read are still
+   * decrypted, delivered and acknowledged before the workers exit.
+   */
+  public void shutdown() {
+    stopped.set(true);
+    reader.interrupt();
+  }
+
+  public boolean isRunning() {
+    return reader.isAlive();
+  }
+
+  private Worker getWorkerFor(SignalServiceEnvelope envelope) {
+    int partition;
+
+    if      (envelope.hasSource()) partition = envelope.getSource().hashCode();
+    else if (envelope.hasUuid())   partition = envelope.getUuid().hashCode();
+    else                           partition = (int)(envelope.getServerTimestamp() ^ (envelope.getServerTimestamp() >>> 32));
+
+    return workers[(partition & Integer.MAX_VALUE) % workers.length];
+  }
+
+  private void acknowledge(WebSocketRequestMessage request, int status, String message) {
+    try {
+      websocket.sendResponse(WebSocketResponseMessage.newBuilder()
+                                                     .setId(request.getId())
+                                                     .setStatus(status)
+                                                     .setMessage(message)
+                                                     .build());
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  private static boolean isSignalServiceEnvelope(WebSocketRequestMessage message) {
+    return "PUT".equals(message.getVerb()) && "/api/v1/message".equals(message.getPath());
+  }
+
+  private class Reader extends Thread {
+
+    private Reader() {
+      super("SignalServiceStreamingReceiver-reader");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      Throwable cause = null;
+
+      try {
+        while (!stopped.get()) {
+          WebSocketRequestMessage request;
+
+          try {
+            request = websocket.readRequest(READ_TIMEOUT_MILLIS);
+          } catch (TimeoutException e) {
+            continue;
+          } catch (IOException e) {
+            Log.w(TAG, e);
+            cause = e;
+            break;
+          }
+
+          if (!isSignalServiceEnvelope(request)) {
+            acknowledge(request, 400, "Unknown");
+            continue;
+          }
+
+          SignalServiceEnvelope envelope;
+
+          try {
+            envelope = decoder.decode(request.getBody().toByteArray());
+          } catch (Exception e) {
+            Log.w(TAG, e);
+            acknowledge(request, 200, "OK");
+            continue;
+          }
+
+          try {
+            if (!getWorkerFor(envelope).enqueue(new Job(request, envelope))) {
+              Log.w(TAG, "Worker is no longer running, stopping receiver");
+              cause = new IOException("Worker is no longer running");
+              break;
+            }
+          } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while handing off envelope, it will be redelivered");
+            cause = e;
+            break;
+          }
+        }
+      } catch (Throwable t) {
+        Log.w(TAG, t);
+        cause = t;
+      } finally {
+        for (Worker worker : workers) {
+          worker.finish();
+        }
+      }
+
+      notifyStopped(stopped.getAndSet(true) ? null : cause);
+    }
+
+    private void notifyStopped(Throwable cause) {
+      try {
+        callback.onStopped(cause);
+      } catch (Throwable t) {
+        Log.w(TAG, t);
+      }
+    }
+  }
+
+  private class Worker extends Thread {
+
+    private final BlockingQueue<Job> jobs = new LinkedBlockingQueue<>(WORKER_QUEUE_CAPACITY);
+
+    private Worker(int index) {
+      super("SignalServiceStreamingReceiver-worker-" + index);
+      setDaemon(true);
+    }
+
+    /**
+     * @return false if the worker has exited and will never take the job.
+     */
+    private boolean enqueue(Job job) throws InterruptedException {
+      while (isAlive()) {
+        if (jobs.offer(job, ENQUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    private void finish() {
+      boolean interrupted = false;
+
+      while (true) {
+        try {
+          enqueue(Job.POISON);
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        Job job;
+
+        try {
+          job = jobs.take();
+        } catch (InterruptedException e) {
+          Log.w(TAG, e);
+          return;
+        }
+
+        if (job == Job.POISON) return;
+
+        try {
+          SignalServiceContent content;
+
+          try {
+            content = cipher.decrypt(job.envelope);
+          } catch (Exception e) {
+            callback.onDecryptionFailure(job.envelope, e);
+            acknowledge(job.request, 200, "OK");
+            continue;
+          }
+
+          callback.onMessage(job.envelope, content);
+          acknowledge(job.request, 200, "OK");
+        } catch (Throwable t) {
+          Log.w(TAG, "Callback failed, not acknowledging envelope", t);
+        }
+      }
+    }
+  }
+
+  private static class Job {
+
+    private static final Job POISON = new Job(null, null);
+
+    private final WebSocketRequestMessage request;
+    private final SignalServiceEnvelope   envelope;
+
+    private Job(WebSocketRequestMessage request, SignalServiceEnvelope envelope) {
+      this.request  = request;
+      this.envelope = envelope;
+    }
+  }
+
+  /**
+   * Receives decrypted messages from a {@link SignalServiceStreamingReceiver}.
+   *
+   * Calls are made from the receiver's worker threads.  Calls for envelopes that name the
+   * same sender are never concurrent and arrive in order.  Sealed sender envelopes may be
+   * delivered concurrently and out of order with any other envelope.
+   */
+  public interface DecryptedMessageCallback {
+
+    /**
+     * Called with each successfully decrypted envelope.  The envelope is acknowledged
+     * once this returns, so the message should be persisted before returning.
+     *
+     * @param envelope The received envelope.
+     * @param content The decrypted content, or null if the envelope carried no content
+     *                this library understands.
+     */
+    public void onMessage(SignalServiceEnvelope envelope, SignalServiceContent content);
+
+    /**
+     * Called when an envelope could not be decrypted.  The envelope is acknowledged
+     * once this returns.
+     *
+     * @param envelope The received envelope.
+     * @param exception The reason decryption failed.
+     */
+    public void onDecryptionFailure(SignalServiceEnvelope envelope, Exception exception);
+
+    /**
+     * Called once when the receiver stops reading from the pipe.  Envelopes that were
+     * already read may still be delivered after this is called.  A receiver that stopped
+     * on its own can't be restarted, so start a new one to keep receiving.
+     *
+     * @param cause Why the receiver stopped, or null if it was stopped with
+     *              {@link SignalServiceStreamingReceiver#shutdown()}.
+     */
+    public void onStopped(Throwable cause);
+  }
+}
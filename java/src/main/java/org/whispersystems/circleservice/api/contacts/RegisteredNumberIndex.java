@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014-2018 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.api.contacts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A local record of which numbers have been through contact discovery, and which of
+ * them were registered.
+ *
+ * Numbers are kept as a sorted array of E.164 digits packed into longs, alongside a
+ * bitmap of which are registered, and are persisted delta-encoded, so the index costs
+ * a little over eight bytes per number in memory and usually two or three on disk.
+ * This lets a refresh look up only the numbers that have been added since the last run.
+ *
+ * Instances are not thread safe.
+ */
+public class RegisteredNumberIndex {
+
+  private static final int MAGIC   = 0x524e4958;
+  private static final int VERSION = 1;
+
+  private final File file;
+
+  private long[] numbers    = new long[0];
+  private BitSet registered = new BitSet();
+  private long   lastFullReconciliationTime;
+
+  /**
+   * @param file Where the index is persisted.  If it exists, the index is loaded from it.
+   */
+  public RegisteredNumberIndex(File file) throws IOException {
+    this.file = file;
+
+    if (file.exists()) {
+      load();
+    }
+  }
+
+  public int size() {
+    return numbers.length;
+  }
+
+  public boolean isRegistered(String e164number) {
+    int index = Arrays.binarySearch(numbers, pack(e164number));
+    return index >= 0 && registered.get(index);
+  }
+
+  public Set<String> getRegisteredNumbers() {
+    Set<String> results = new HashSet<>();
+
+    for (int i=registered.nextSetBit(0);i>=0;i=registered.nextSetBit(i+1)) {
+      results.add(unpack(numbers[i]));
+    }
+
+    return results;
+  }
+
+  /**
+   * @return The time of the last full reconciliation, in milliseconds since the epoch,
+   *         or 0 if there hasn't been one.
+   */
+  public long getLastFullReconciliationTime() {
+    return lastFullReconciliationTime;
+  }
+
+  public void setLastFullReconciliationTime(long lastFullReconciliationTime) {
+    this.lastFullReconciliationTime = lastFullReconciliationTime;
+  }
+
+  /**
+   * @param addressBook Packed numbers.
+   * @return The numbers in the address book that aren't in the index.
+   */
+  public long[] getUnknown(long[] addressBook) {
+    long[] unknown = new long[addressBook.length];
+    int    count   = 0;
+
+    for (long number : addressBook) {
+      if (Arrays.binarySearch(numbers, number) < 0) {
+        unknown[count++] = number;
+      }
+    }
+
+    return Arrays.copyOf(unknown, count);
+  }
+
+  /**
+   * Drop every number that isn't in the address book.
+   *
+   * @param addressBook Packed numbers.
+   */
+  public void retainAll(long[] addressBook) {
+    long[] sortedAddressBook = addressBook.clone();
+    Arrays.sort(sortedAddressBook);
+
+    long[] retainedNumbers    = new long[numbers.length];
+    BitSet retainedRegistered = new BitSet();
+    int    count              = 0;
+
+    for (int i=0;i<numbers.length;i++) {
+      if (Arrays.binarySearch(sortedAddressBook, numbers[i]) >= 0) {
+        if (registered.get(i)) retainedRegistered.set(count);
+        retainedNumbers[count++] = numbers[i];
+      }
+    }
+
+    this.numbers    = Arrays.copyOf(retainedNumbers, count);
+    this.registered = retainedRegistered;
+  }
+
+  /**
+   * Record discovery results.  Numbers already in the index have their registration
+   * updated, and new numbers are merged in.
+   *
+   * @param discovered Packed numbers that were looked up.
+   * @param results One byte per number, non-zero if that number is registered.
+   */
+  public void update(long[] discovered, byte[] results) {
+    if (discovered.length != results.length) {
+      throw new IllegalArgumentException("Got " + results.length + " results for " + discovered.length + " numbers");
+    }
+
+    long[] additions = new long[discovered.length];
+    BitSet added     = new BitSet();
+    int    count     = 0;
+
+    for (int i=0;i<discovered.length;i++) {
+      int index = Arrays.binarySearch(numbers, discovered[i]);
+
+      if (index >= 0) {
+        registered.set(index, results[i] != 0);
+      } else {
+        additions[count++] = discovered[i] * 2 + (results[i] != 0 ? 1 : 0);
+      }
+    }
+
+    if (count == 0) return;
+
+    additions = Arrays.copyOf(additions, count);
+    Arrays.sort(additions);
+
+    int unique = 0;
+
+    for (int i=0;i<count;i++) {
+      if (unique > 0 && additions[unique - 1] >>> 1 == additions[i] >>> 1) unique--;
+      additions[unique++] = additions[i];
+    }
+
+    long[] merged           = new long[numbers.length + unique];
+    BitSet mergedRegistered = new BitSet();
+    int    existing         = 0;
+    int    addition         = 0;
+    int    position         = 0;
+
+    while (existing < numbers.length || addition < unique) {
+      if (addition >= unique || (existing < numbers.length && numbers[existing] < additions[addition] >>> 1)) {
+        if (registered.get(existing)) mergedRegistered.set(position);
+        merged[position++] = numbers[existing++];
+      } else {
+        if ((additions[addition] & 1) != 0) mergedRegistered.set(position);
+        merged[position++] = additions[addition++] >>> 1;
+      }
+    }
+
+    this.numbers    = Arrays.copyOf(merged, position);
+    this.registered = mergedRegistered;
+  }
+
+  /**
+   * Write the index to its file, replacing the previous copy atomically.
+   */
+  public void save() throws IOException {
+    File             temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+    DataOutputStream out  = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(lastFullReconciliationTime);
+      out.writeInt(numbers.length);
+
+      long previous = 0;
+
+      for (long number : numbers) {
+        writeVarLong(out, number - previous);
+        previous = number;
+      }
+
+      long[] words = registered.toLongArray();
+      out.writeInt(words.length);
+
+      for (long word : words) {
+        out.writeLong(word);
+      }
+
+      out.close();
+
+      if (!temp.renameTo(file)) {
+        file.delete();
+
+        if (!temp.renameTo(file)) {
+          throw new IOException("Unable to replace " + file);
+        }
+      }
+    } finally {
+      out.close();
+      temp.delete();
+    }
+  }
+
+  public static long pack(String e164number) {
+    return Long.parseLong(e164number.substring(1));
+  }
+
+  public static String unpack(long number) {
+    return "+" + number;
+  }
+
+  private void load() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+    try {
+      if (in.readInt() != MAGIC)   throw new IOException("Not a registered number index: " + file);
+      if (in.readInt() != VERSION) throw new IOException("Unsupported registered number index version: " + file);
+
+      long   lastFullReconciliationTime = in.readLong();
+      long[] numbers                    = new long[in.readInt()];
+      long   previous                   = 0;
+
+      for (int i=0;i<numbers.length;i++) {
+        numbers[i] = previous + readVarLong(in);
+        previous   = numbers[i];
+      }
+
+      long[] words = new long[in.readInt()];
+
+      for (int i=0;i<words.length;i++) {
+        words[i] = in.readLong();
+      }
+
+      this.lastFullReconciliationTime = lastFullReconciliationTime;
+      this.numbers                    = numbers;
+      this.registered                 = BitSet.valueOf(words);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+
+    out.writeByte((int)value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    int  shift = 0;
+    int  b;
+
+    do {
+      if (shift > 63) throw new IOException("Malformed index entry");
+
+      b      = in.readUnsignedByte();
+      value |= (long)(b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+
+    return value;
+  }
+}
@@ -14,14 +14,15 @@ import org.whispersystems.circleservice.internal.util.Util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -43,12 +44,17 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   private static final int BLOCK_SIZE      = 16;
   private static final int CIPHER_KEY_SIZE = 32;
   private static final int MAC_KEY_SIZE    = 32;
+  private static final int BUFFER_SIZE     = 8192;
+
+  private final Cipher cipher;
+  private final byte[] ciphertextBuffer;
+  private final byte[] plaintextBuffer;
+  private final long   totalDataSize;
 
-  private Cipher  cipher;
   private boolean done;
-  private long    totalDataSize;
   private long    totalRead;
-  private byte[]  overflowBuffer;
+  private int     plaintextOffset;
+  private int     plaintextLength;
 
   public static InputStream createFor(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
       throws InvalidMessageException, IOException
@@ -78,6 +84,117 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Decrypt a downloaded attachment in a single pass over the file, verifying its MAC
+   * and digest while it is decrypted.  The plaintext is written to a temporary file
+   * alongside plaintextDestination, and only moved into place once verification succeeds.
+   *
+   * @param file The encrypted attachment.
+   * @param plaintextLength The plaintext length from the attachment pointer, or 0 if unknown.
+   * @param combinedKeyMaterial The attachment key from the attachment pointer.
+   * @param digest The attachment digest from the attachment pointer.
+   * @param plaintextDestination Where to write the verified plaintext.
+   * @return An InputStream over the verified plaintext.
+   */
+  public static InputStream createFor(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest, File plaintextDestination)
+      throws InvalidMessageException, IOException
+  {
+    File temporaryFile = File.createTempFile("attachment", ".tmp", plaintextDestination.getAbsoluteFile().getParentFile());
+
+    try {
+      InputStream  inputStream  = new FileInputStream(file);
+      OutputStream outputStream = new FileOutputStream(temporaryFile);
+
+      try {
+        decrypt(inputStream, file.length(), plaintextLength, combinedKeyMaterial, digest, outputStream);
+      } finally {
+        inputStream.close();
+        outputStream.close();
+      }
+
+      if (!temporaryFile.renameTo(plaintextDestination)) {
+        plaintextDestination.delete();
+
+        if (!temporaryFile.renameTo(plaintextDestination)) {
+          throw new IOException("Unable to move decrypted attachment to " + plaintextDestination);
+        }
+      }
+
+      return new FileInputStream(plaintextDestination);
+    } finally {
+      temporaryFile.delete();
+    }
+  }
+
+  /**
+   * Decrypt an attachment from a stream in a single pass, verifying its MAC and digest
+   * as the ciphertext is read.  Plaintext is written to outputStream as it's decrypted,
+   * so callers must not use anything written there unless this returns normally.
+   *
+   * @param inputStream The encrypted attachment.
+   * @param ciphertextLength The total length of the encrypted attachment.
+   * @param plaintextLength The plaintext length from the attachment pointer, or 0 if unknown.
+   * @param combinedKeyMaterial The attachment key from the attachment pointer.
+   * @param digest The attachment digest from the attachment pointer.
+   * @param outputStream Where to write the plaintext.
+   */
+  public static void decrypt(InputStream inputStream, long ciphertextLength, long plaintextLength,
+                             byte[] combinedKeyMaterial, byte[] digest, OutputStream outputStream)
+      throws InvalidMessageException, IOException
+  {
+    try {
+      byte[][]      parts         = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+      Mac           mac           = Mac.getInstance("HmacSHA256");
+      MessageDigest messageDigest = MessageDigest.getInstance("SHA256");
+      mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      if (ciphertextLength <= BLOCK_SIZE + mac.getMacLength()) {
+        throw new InvalidMessageException("Message shorter than crypto overhead!");
+      }
+
+      VerifyingInputStream        verifyingStream  = new VerifyingInputStream(inputStream, mac, messageDigest);
+      AttachmentCipherInputStream decryptingStream = new AttachmentCipherInputStream(verifyingStream, parts[0], ciphertextLength - BLOCK_SIZE - mac.getMacLength());
+      byte[]                      buffer           = new byte[BUFFER_SIZE];
+      long                        remaining        = plaintextLength != 0 ? plaintextLength : Long.MAX_VALUE;
+      IOException                 paddingFailure   = null;
+      int                         read;
+
+      try {
+        while ((read = decryptingStream.read(buffer)) != -1) {
+          int writeLength = (int)Math.min(read, remaining);
+
+          outputStream.write(buffer, 0, writeLength);
+          remaining -= writeLength;
+        }
+      } catch (IOException e) {
+        if (e.getCause() instanceof BadPaddingException) paddingFailure = e;
+        else                                             throw e;
+      }
+
+      // Padding is only checked once the whole ciphertext has been read, so the MAC can
+      // still be checked first, and tampering is reported as a MAC failure.
+      byte[] ourMac   = mac.doFinal();
+      byte[] theirMac = new byte[mac.getMacLength()];
+      readFully(inputStream, theirMac);
+
+      if (!MessageDigest.isEqual(ourMac, theirMac)) {
+        throw new InvalidMessageException(new InvalidMacException("MAC doesn't match!"));
+      }
+
+      if (paddingFailure != null) {
+        throw new InvalidMessageException(paddingFailure);
+      }
+
+      byte[] ourDigest = messageDigest.digest(theirMac);
+
+      if (!MessageDigest.isEqual(ourDigest, digest)) {
+        throw new InvalidMessageException(new InvalidMacException("Digest doesn't match!"));
+      }
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize)
       throws IOException
   {
@@ -85,19 +202,27 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
     try {
       byte[] iv = new byte[BLOCK_SIZE];
-      readFully(iv);
+      readFully(in, iv);
 
       this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
       this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
 
-      this.done          = false;
-      this.totalRead     = 0;
-      this.totalDataSize = totalDataSize;
+      this.ciphertextBuffer = new byte[BUFFER_SIZE];
+      this.plaintextBuffer  = new byte[BUFFER_SIZE + BLOCK_SIZE];
+      this.done             = false;
+      this.totalRead        = 0;
+      this.totalDataSize    = totalDataSize;
     } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     }
   }
 
+  @Override
+  public int read() throws IOException {
+    if (!fillPlaintextBuffer()) return -1;
+    return plaintextBuffer[plaintextOffset++] & 0xFF;
+  }
+
   @Override
   public int read(byte[] buffer) throws IOException {
     return read(buffer, 0, buffer.length);
@@ -105,9 +230,20 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if      (totalRead != totalDataSize) return readIncremental(buffer, offset, length);
-    else if (!done)                      return readFinal(buffer, offset, length);
-    else                                 return -1;
+    if (length == 0)            return 0;
+    if (!fillPlaintextBuffer()) return -1;
+
+    int copyLength = Math.min(length, plaintextLength - plaintextOffset);
+
+    System.arraycopy(plaintextBuffer, plaintextOffset, buffer, offset, copyLength);
+    plaintextOffset += copyLength;
+
+    return copyLength;
+  }
+
+  @Override
+  public int available() {
+    return plaintextLength - plaintextOffset;
   }
 
   @Override
@@ -118,73 +254,55 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   @Override
   public long skip(long byteCount) throws IOException {
     long skipped = 0L;
-    while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
 
-      skipped += read;
+    while (skipped < byteCount && fillPlaintextBuffer()) {
+      int skipLength = (int)Math.min(byteCount - skipped, plaintextLength - plaintextOffset);
+
+      plaintextOffset += skipLength;
+      skipped         += skipLength;
     }
 
     return skipped;
   }
 
-  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
-    try {
-      int flourish = cipher.doFinal(buffer, offset);
+  /**
+   * Make sure there is decrypted data waiting in the plaintext buffer, decrypting
+   * the next chunk of ciphertext into it if it has been drained.
+   *
+   * @return false if the end of the plaintext has been reached.
+   */
+  private boolean fillPlaintextBuffer() throws IOException {
+    while (plaintextOffset == plaintextLength) {
+      if (done) return false;
+
+      plaintextOffset = 0;
+      plaintextLength = totalRead != totalDataSize ? decryptIncremental() : decryptFinal();
+    }
 
+    return true;
+  }
+
+  private int decryptFinal() throws IOException {
+    try {
       done = true;
-      return flourish;
+      return cipher.doFinal(plaintextBuffer, 0);
     } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
       throw new IOException(e);
     }
   }
 
-  private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
-    int readLength = 0;
-    if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
-        return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = null;
-        return length;
-      } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
-        offset += readLength;
-        length -= readLength;
-        overflowBuffer = null;
-      }
-    }
+  private int decryptIncremental() throws IOException {
+    int readLength = (int)Math.min(ciphertextBuffer.length, totalDataSize - totalRead);
+    int read       = super.read(ciphertextBuffer, 0, readLength);
 
-    if (length + totalRead > totalDataSize)
-      length = (int)(totalDataSize - totalRead);
+    if (read == -1) {
+      throw new IOException("Unexpected end of attachment data");
+    }
 
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead            += read;
+    totalRead += read;
 
     try {
-      int outputLen = cipher.getOutputSize(read);
-
-      if (outputLen <= length) {
-        readLength += cipher.update(internalBuffer, 0, read, buffer, offset);
-        return readLength;
-      }
-
-      byte[] transientBuffer = new byte[outputLen];
-      outputLen = cipher.update(internalBuffer, 0, read, transientBuffer, 0);
-      if (outputLen <= length) {
-        System.arraycopy(transientBuffer, 0, buffer, offset, outputLen);
-        readLength += outputLen;
-      } else {
-        System.arraycopy(transientBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
-        readLength += length;
-      }
-      return readLength;
+      return cipher.update(ciphertextBuffer, 0, read, plaintextBuffer, 0);
     } catch (ShortBufferException e) {
       throw new AssertionError(e);
     }
@@ -227,16 +345,71 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
-  private void readFully(byte[] buffer) throws IOException {
+  private static void readFully(InputStream in, byte[] buffer) throws IOException {
     int offset = 0;
 
     for (;;) {
-      int read = super.read(buffer, offset, buffer.length - offset);
+      int read = in.read(buffer, offset, buffer.length - offset);
 
-      if (read + offset < buffer.length) offset += read;
-      else                		           return;
+      if (read == -1)                         throw new IOException("Unexpected end of attachment data");
+      else if (read + offset < buffer.length) offset += read;
+      else                                    return;
     }
   }
 
+  /**
+   * Feeds everything read through it into the attachment MAC and digest.
+   */
+  private static class VerifyingInputStream extends FilterInputStream {
 
+    private final Mac           mac;
+    private final MessageDigest digest;
+
+    private VerifyingInputStream(InputStream inputStream, Mac mac, MessageDigest digest) {
+      super(inputStream);
+      this.mac    = mac;
+      this.digest = digest;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int read = super.read();
+
+      if (read != -1) {
+        mac.update((byte)read);
+        digest.update((byte)read);
+      }
+
+      return read;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+
+      if (read > 0) {
+        mac.update(buffer, offset, read);
+        digest.update(buffer, offset, read);
+      }
+
+      return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+      if (byteCount <= 0) return 0;
+
+      byte[] buffer  = new byte[(int)Math.min(byteCount, BUFFER_SIZE)];
+      long   skipped = 0;
+
+      while (skipped < byteCount) {
+        int read = read(buffer, 0, (int)Math.min(byteCount - skipped, buffer.length));
+        if (read == -1) break;
+
+        skipped += read;
+      }
+
+      return skipped;
+    }
+  }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014-2018 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.api.crypto;
+
+import org.whispersystems.libsignal.InvalidMacException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.circleservice.internal.util.Util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts an encrypted push attachment as its ciphertext is written, for instance
+ * while it's still being downloaded.
+ *
+ * The trailing MAC is recognized by holding back the last bytes written, so the
+ * total ciphertext length doesn't need to be known up front.  Plaintext is passed
+ * to the underlying stream as it's decrypted, before it has been authenticated, so
+ * nothing written there may be used until {@link #finish()} returns normally.
+ */
+public class AttachmentCipherVerifyingOutputStream extends FilterOutputStream {
+
+  private static final int BLOCK_SIZE      = 16;
+  private static final int CIPHER_KEY_SIZE = 32;
+  private static final int MAC_KEY_SIZE    = 32;
+  private static final int MAC_SIZE        = 32;
+  private static final int BUFFER_SIZE     = 8192;
+
+  private final Cipher        cipher;
+  private final SecretKeySpec cipherKey;
+  private final Mac           mac;
+  private final MessageDigest messageDigest;
+  private final byte[]        theirDigest;
+  private final byte[]        iv;
+  private final byte[]        trailer;
+  private final byte[]        plaintextBuffer;
+
+  private int     ivLength;
+  private int     trailerLength;
+  private long    plaintextRemaining;
+  private boolean finished;
+
+  /**
+   * @param outputStream Where to write the plaintext.
+   * @param plaintextLength The plaintext length from the attachment pointer, or 0 if unknown.
+   * @param combinedKeyMaterial The attachment key from the attachment pointer.
+   * @param digest The attachment digest from the attachment pointer.
+   */
+  public AttachmentCipherVerifyingOutputStream(OutputStream outputStream, long plaintextLength,
+                                               byte[] combinedKeyMaterial, byte[] digest)
+  {
+    super(outputStream);
+
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+
+      this.cipher        = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.cipherKey     = new SecretKeySpec(parts[0], "AES");
+      this.mac           = Mac.getInstance("HmacSHA256");
+      this.messageDigest = MessageDigest.getInstance("SHA256");
+      this.mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      this.theirDigest        = digest;
+      this.iv                 = new byte[BLOCK_SIZE];
+      this.trailer            = new byte[MAC_SIZE];
+      this.plaintextBuffer    = new byte[BUFFER_SIZE + BLOCK_SIZE];
+      this.plaintextRemaining = plaintextLength != 0 ? plaintextLength : Long.MAX_VALUE;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (finished) throw new IOException("Already finished");
+
+    int releaseLength = trailerLength + length - MAC_SIZE;
+
+    if (releaseLength <= 0) {
+      System.arraycopy(buffer, offset, trailer, trailerLength, length);
+      trailerLength += length;
+      return;
+    }
+
+    int releaseFromTrailer = Math.min(trailerLength, releaseLength);
+    int releaseFromBuffer  = releaseLength - releaseFromTrailer;
+
+    process(trailer, 0, releaseFromTrailer);
+    process(buffer, offset, releaseFromBuffer);
+
+    System.arraycopy(trailer, releaseFromTrailer, trailer, 0, trailerLength - releaseFromTrailer);
+    trailerLength -= releaseFromTrailer;
+
+    System.arraycopy(buffer, offset + releaseFromBuffer, trailer, trailerLength, length - releaseFromBuffer);
+    trailerLength += length - releaseFromBuffer;
+  }
+
+  /**
+   * Verify the MAC and digest of everything written, and decrypt the final block.
+   *
+   * @throws InvalidMessageException if the attachment fails verification, in which case
+   *                                 everything written to the underlying stream must be
+   *                                 discarded.
+   */
+  public void finish() throws InvalidMessageException, IOException {
+    if (finished) return;
+    finished = true;
+
+    if (ivLength < BLOCK_SIZE || trailerLength < MAC_SIZE) {
+      throw new InvalidMessageException("Message shorter than crypto overhead!");
+    }
+
+    byte[] ourMac = mac.doFinal();
+
+    if (!MessageDigest.isEqual(ourMac, trailer)) {
+      throw new InvalidMessageException(new InvalidMacException("MAC doesn't match!"));
+    }
+
+    byte[] ourDigest = messageDigest.digest(trailer);
+
+    if (!MessageDigest.isEqual(ourDigest, theirDigest)) {
+      throw new InvalidMessageException(new InvalidMacException("Digest doesn't match!"));
+    }
+
+    try {
+      writePlaintext(cipher.doFinal(plaintextBuffer, 0));
+      out.flush();
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
+  private void process(byte[] buffer, int offset, int length) throws IOException {
+    mac.update(buffer, offset, length);
+    messageDigest.update(buffer, offset, length);
+
+    if (ivLength < BLOCK_SIZE) {
+      int ivPart = Math.min(BLOCK_SIZE - ivLength, length);
+
+      System.arraycopy(buffer, offset, iv, ivLength, ivPart);
+      ivLength += ivPart;
+      offset   += ivPart;
+      length   -= ivPart;
+
+      if (ivLength == BLOCK_SIZE) {
+        initializeCipher();
+      }
+    }
+
+    try {
+      while (length > 0) {
+        int chunkLength = Math.min(length, BUFFER_SIZE);
+
+        writePlaintext(cipher.update(buffer, offset, chunkLength, plaintextBuffer, 0));
+        offset += chunkLength;
+        length -= chunkLength;
+      }
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void writePlaintext(int length) throws IOException {
+    int writeLength = (int)Math.min(length, plaintextRemaining);
+
+    out.write(plaintextBuffer, 0, writeLength);
+    plaintextRemaining -= writeLength;
+  }
+
+  private void initializeCipher() {
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
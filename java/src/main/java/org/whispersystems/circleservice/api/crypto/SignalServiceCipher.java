@@ -59,6 +59,8 @@ import org.whispersystems.circleservice.api.messages.multidevice.SignalServiceSy
 import org.whispersystems.circleservice.api.messages.multidevice.VerifiedMessage;
 import org.whispersystems.circleservice.api.messages.multidevice.VerifiedMessage.VerifiedState;
 import org.whispersystems.circleservice.api.messages.shared.SharedContact;
+import org.whispersystems.circleservice.api.metrics.SignalServiceMetrics;
+import org.whispersystems.circleservice.api.metrics.SignalServiceMetricsProvider;
 import org.whispersystems.circleservice.api.push.SignalServiceAddress;
 import org.whispersystems.circleservice.internal.push.OutgoingPushMessage;
 import org.whispersystems.circleservice.internal.push.PushTransportDetails;
@@ -71,8 +73,10 @@ import org.whispersystems.circleservice.internal.push.SignalServiceProtos.SyncMe
 import org.whispersystems.circleservice.internal.push.SignalServiceProtos.TypingMessage;
 import org.whispersystems.circleservice.internal.push.SignalServiceProtos.Verified;
 import org.whispersystems.circleservice.internal.util.Base64;
+import org.whispersystems.circleservice.internal.util.LRUCache;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -90,9 +94,13 @@ public class SignalServiceCipher {
   @SuppressWarnings("unused")
   private static final String TAG = SignalServiceCipher.class.getSimpleName();
 
-  private final SignalProtocolStore  signalProtocolStore;
-  private final SignalServiceAddress localAddress;
-  private final CertificateValidator certificateValidator;
+  private static final int MAX_CACHED_SESSION_CIPHERS = 1000;
+
+  private final SignalProtocolStore                            signalProtocolStore;
+  private final SignalServiceAddress                           localAddress;
+  private final CertificateValidator                           certificateValidator;
+  private final SealedSessionCipher                            sealedSessionCipher;
+  private final LRUCache<SignalProtocolAddress, SessionCipher> sessionCiphers;
 
   public SignalServiceCipher(SignalServiceAddress localAddress,
                              SignalProtocolStore signalProtocolStore,
@@ -101,6 +109,37 @@ public class SignalServiceCipher {
     this.signalProtocolStore  = signalProtocolStore;
     this.localAddress         = localAddress;
     this.certificateValidator = certificateValidator;
+    this.sealedSessionCipher  = new SealedSessionCipher(signalProtocolStore, new SignalProtocolAddress(localAddress.getNumber(), 1));
+    this.sessionCiphers       = new LRUCache<>(MAX_CACHED_SESSION_CIPHERS);
+  }
+
+  /**
+   * Drop any cached cipher state for a remote device.  Call this whenever
+   * the session for that device is deleted or replaced.
+   *
+   * @param address The remote device.
+   */
+  public void invalidate(SignalProtocolAddress address) {
+    synchronized (sessionCiphers) {
+      sessionCiphers.remove(address);
+    }
+  }
+
+  /**
+   * Drop any cached cipher state for every device of a remote number.
+   *
+   * @param number The remote number.
+   */
+  public void invalidate(String number) {
+    synchronized (sessionCiphers) {
+      Iterator<SignalProtocolAddress> iterator = sessionCiphers.keySet().iterator();
+
+      while (iterator.hasNext()) {
+        if (iterator.next().getName().equals(number)) {
+          iterator.remove();
+        }
+      }
+    }
   }
 
   public OutgoingPushMessage encrypt(SignalProtocolAddress        destination,
@@ -109,16 +148,16 @@ public class SignalServiceCipher {
       throws UntrustedIdentityException, InvalidKeyException
   {
     if (unidentifiedAccess.isPresent()) {
-      SealedSessionCipher  sessionCipher        = new SealedSessionCipher(signalProtocolStore, new SignalProtocolAddress(localAddress.getNumber(), 1));
-      PushTransportDetails transportDetails     = new PushTransportDetails(sessionCipher.getSessionVersion(destination));
+      SealedSessionCipher  sessionCipher        = sealedSessionCipher;
+      PushTransportDetails transportDetails     = PushTransportDetails.forVersion(sessionCipher.getSessionVersion(destination));
       byte[]               ciphertext           = sessionCipher.encrypt(destination, unidentifiedAccess.get().getUnidentifiedCertificate(), transportDetails.getPaddedMessageBody(unpaddedMessage));
       String               body                 = Base64.encodeBytes(ciphertext);
       int                  remoteRegistrationId = sessionCipher.getRemoteRegistrationId(destination);
 
       return new OutgoingPushMessage(Type.UNIDENTIFIED_SENDER_VALUE, destination.getDeviceId(), remoteRegistrationId, body);
     } else {
-      SessionCipher        sessionCipher        = new SessionCipher(signalProtocolStore, destination);
-      PushTransportDetails transportDetails     = new PushTransportDetails(sessionCipher.getSessionVersion());
+      SessionCipher        sessionCipher        = getSessionCipher(destination);
+      PushTransportDetails transportDetails     = PushTransportDetails.forVersion(sessionCipher.getSessionVersion());
       CiphertextMessage    message              = sessionCipher.encrypt(transportDetails.getPaddedMessageBody(unpaddedMessage));
       int                  remoteRegistrationId = sessionCipher.getRemoteRegistrationId();
       String               body                 = Base64.encodeBytes(message.serialize());
@@ -151,6 +190,8 @@ public class SignalServiceCipher {
       SelfSendException
 
   {
+    long startTime = System.nanoTime();
+
     try {
       if (envelope.hasLegacyMessage()) {
         Plaintext plaintext = decrypt(envelope, envelope.getLegacyMessage());
@@ -200,6 +241,8 @@ public class SignalServiceCipher {
       return null;
     } catch (InvalidProtocolBufferException e) {
       throw new InvalidMetadataMessageException(e);
+    } finally {
+      SignalServiceMetricsProvider.getProvider().recordTime(SignalServiceMetrics.DECRYPT_TIME, System.nanoTime() - startTime);
     }
   }
 
@@ -213,8 +256,7 @@ public class SignalServiceCipher {
   {
     try {
       SignalProtocolAddress sourceAddress       = new SignalProtocolAddress(envelope.getSource(), envelope.getSourceDevice());
-      SessionCipher         sessionCipher       = new SessionCipher(signalProtocolStore, sourceAddress);
-      SealedSessionCipher   sealedSessionCipher = new SealedSessionCipher(signalProtocolStore, new SignalProtocolAddress(localAddress.getNumber(), 1));
+      SessionCipher         sessionCipher       = getSessionCipher(sourceAddress);
 
       byte[] paddedMessage;
       Metadata metadata;
@@ -237,7 +279,7 @@ public class SignalServiceCipher {
         throw new InvalidMetadataMessageException("Unknown type: " + envelope.getType());
       }
 
-      PushTransportDetails transportDetails = new PushTransportDetails(sessionVersion);
+      PushTransportDetails transportDetails = PushTransportDetails.forVersion(sessionVersion);
       byte[]               data             = transportDetails.getStrippedPaddingMessageBody(paddedMessage);
 
       return new Plaintext(metadata, data);
@@ -260,6 +302,19 @@ public class SignalServiceCipher {
     }
   }
 
+  private SessionCipher getSessionCipher(SignalProtocolAddress address) {
+    synchronized (sessionCiphers) {
+      SessionCipher sessionCipher = sessionCiphers.get(address);
+
+      if (sessionCipher == null) {
+        sessionCipher = new SessionCipher(signalProtocolStore, address);
+        sessionCiphers.put(address, sessionCipher);
+      }
+
+      return sessionCipher;
+    }
+  }
+
   private SignalServiceDataMessage createSignalServiceMessage(Metadata metadata, DataMessage content) throws ProtocolInvalidMessageException {
     SignalServiceGroup             groupInfo        = createGroupInfo(content);
     List<SignalServiceAttachment>  attachments      = new LinkedList<>();
@@ -9,25 +9,11 @@ package org.whispersystems.circleservice.api.messages;
 import com.google.protobuf.ByteString;
 
 import org.whispersystems.libsignal.InvalidVersionException;
-import org.whispersystems.libsignal.logging.Log;
 import org.whispersystems.circleservice.api.push.SignalServiceAddress;
 import org.whispersystems.circleservice.internal.push.SignalServiceProtos.Envelope;
 import org.whispersystems.circleservice.internal.util.Base64;
-import org.whispersystems.circleservice.internal.util.Hex;
 
 import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * This class represents an encrypted Signal Service envelope.
@@ -39,19 +25,6 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class SignalServiceEnvelope {
 
-  private static final String TAG = SignalServiceEnvelope.class.getSimpleName();
-
-  private static final int SUPPORTED_VERSION =  1;
-  private static final int CIPHER_KEY_SIZE   = 32;
-  private static final int MAC_KEY_SIZE      = 20;
-  private static final int MAC_SIZE          = 10;
-
-  private static final int VERSION_OFFSET    =  0;
-  private static final int VERSION_LENGTH    =  1;
-  private static final int IV_OFFSET         = VERSION_OFFSET + VERSION_LENGTH;
-  private static final int IV_LENGTH         = 16;
-  private static final int CIPHERTEXT_OFFSET = IV_OFFSET + IV_LENGTH;
-
   private final Envelope envelope;
 
   /**
@@ -71,6 +44,7 @@ public class SignalServiceEnvelope {
 
   /**
    * Construct an envelope from a serialized SignalServiceEnvelope, encrypted with a signaling key.
+   * When opening many envelopes with the same key, use a {@link SignalServiceEnvelopeDecoder}.
    *
    * @param ciphertext The serialized and encrypted SignalServiceEnvelope.
    * @param signalingKey The signaling key.
@@ -80,15 +54,11 @@ public class SignalServiceEnvelope {
   public SignalServiceEnvelope(byte[] ciphertext, String signalingKey)
       throws InvalidVersionException, IOException
   {
-    if (ciphertext.length < VERSION_LENGTH || ciphertext[VERSION_OFFSET] != SUPPORTED_VERSION)
-      throw new InvalidVersionException("Unsupported version!");
-
-    SecretKeySpec cipherKey  = getCipherKey(signalingKey);
-    SecretKeySpec macKey     = getMacKey(signalingKey);
-
-    verifyMac(ciphertext, macKey);
+    this(new SignalServiceEnvelopeDecoder(signalingKey).decodeEnvelope(ciphertext));
+  }
 
-    this.envelope = Envelope.parseFrom(getPlaintext(ciphertext, cipherKey));
+  SignalServiceEnvelope(Envelope envelope) {
+    this.envelope = envelope;
   }
 
   public SignalServiceEnvelope(int type, String sender, int senderDevice, long timestamp, byte[] legacyMessage, byte[] content, long serverTimestamp, String uuid) {
@@ -232,70 +202,4 @@ public class SignalServiceEnvelope {
   public boolean isUnidentifiedSender() {
     return envelope.getType().getNumber() == Envelope.Type.UNIDENTIFIED_SENDER_VALUE;
   }
-
-  private byte[] getPlaintext(byte[] ciphertext, SecretKeySpec cipherKey) throws IOException {
-    try {
-      byte[] ivBytes = new byte[IV_LENGTH];
-      System.arraycopy(ciphertext, IV_OFFSET, ivBytes, 0, ivBytes.length);
-      IvParameterSpec iv = new IvParameterSpec(ivBytes);
-
-      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      cipher.init(Cipher.DECRYPT_MODE, cipherKey, iv);
-
-      return cipher.doFinal(ciphertext, CIPHERTEXT_OFFSET,
-                            ciphertext.length - VERSION_LENGTH - IV_LENGTH - MAC_SIZE);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException e) {
-      throw new AssertionError(e);
-    } catch (BadPaddingException e) {
-      Log.w(TAG, e);
-      throw new IOException("Bad padding?");
-    }
-  }
-
-  private void verifyMac(byte[] ciphertext, SecretKeySpec macKey) throws IOException {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(macKey);
-
-      if (ciphertext.length < MAC_SIZE + 1)
-        throw new IOException("Invalid MAC!");
-
-      mac.update(ciphertext, 0, ciphertext.length - MAC_SIZE);
-
-      byte[] ourMacFull  = mac.doFinal();
-      byte[] ourMacBytes = new byte[MAC_SIZE];
-      System.arraycopy(ourMacFull, 0, ourMacBytes, 0, ourMacBytes.length);
-
-      byte[] theirMacBytes = new byte[MAC_SIZE];
-      System.arraycopy(ciphertext, ciphertext.length-MAC_SIZE, theirMacBytes, 0, theirMacBytes.length);
-
-      Log.w(TAG, "Our MAC: " + Hex.toString(ourMacBytes));
-      Log.w(TAG, "Thr MAC: " + Hex.toString(theirMacBytes));
-
-      if (!Arrays.equals(ourMacBytes, theirMacBytes)) {
-        throw new IOException("Invalid MAC compare!");
-      }
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
-  }
-
-
-  private SecretKeySpec getCipherKey(String signalingKey) throws IOException {
-    byte[] signalingKeyBytes = Base64.decode(signalingKey);
-    byte[] cipherKey         = new byte[CIPHER_KEY_SIZE];
-    System.arraycopy(signalingKeyBytes, 0, cipherKey, 0, cipherKey.length);
-
-    return new SecretKeySpec(cipherKey, "AES");
-  }
-
-
-  private SecretKeySpec getMacKey(String signalingKey) throws IOException {
-    byte[] signalingKeyBytes = Base64.decode(signalingKey);
-    byte[] macKey            = new byte[MAC_KEY_SIZE];
-    System.arraycopy(signalingKeyBytes, CIPHER_KEY_SIZE, macKey, 0, macKey.length);
-
-    return new SecretKeySpec(macKey, "HmacSHA256");
-  }
-
 }
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.api.messages;
+
+import org.whispersystems.libsignal.InvalidVersionException;
+import org.whispersystems.circleservice.internal.push.SignalServiceProtos.Envelope;
+import org.whispersystems.circleservice.internal.util.Base64;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Opens envelopes encrypted with one signaling key.
+ *
+ * The cipher and MAC keys are derived from the signaling key once, and each thread
+ * reuses its own {@link Cipher} and {@link Mac}, so opening an envelope costs only the
+ * MAC, the decryption, and the parse.  A decoder is safe to share across threads.
+ */
+public class SignalServiceEnvelopeDecoder {
+
+  private static final int SUPPORTED_VERSION =  1;
+  private static final int CIPHER_KEY_SIZE   = 32;
+  private static final int MAC_KEY_SIZE      = 20;
+  private static final int MAC_SIZE          = 10;
+
+  private static final int VERSION_OFFSET    =  0;
+  private static final int VERSION_LENGTH    =  1;
+  private static final int IV_OFFSET         = VERSION_OFFSET + VERSION_LENGTH;
+  private static final int IV_LENGTH         = 16;
+  private static final int CIPHERTEXT_OFFSET = IV_OFFSET + IV_LENGTH;
+
+  private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      try {
+        return Cipher.getInstance("AES/CBC/PKCS5Padding");
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private final SecretKeySpec    cipherKey;
+  private final ThreadLocal<Mac> macs;
+
+  /**
+   * @param signalingKey The Base64 encoded signaling key.
+   * @throws IOException If the signaling key can't be decoded.
+   */
+  public SignalServiceEnvelopeDecoder(String signalingKey) throws IOException {
+    byte[] signalingKeyBytes = Base64.decode(signalingKey);
+
+    if (signalingKeyBytes.length < CIPHER_KEY_SIZE + MAC_KEY_SIZE) {
+      throw new IOException("Signaling key is too short!");
+    }
+
+    final SecretKeySpec macKey = new SecretKeySpec(signalingKeyBytes, CIPHER_KEY_SIZE, MAC_KEY_SIZE, "HmacSHA256");
+
+    this.cipherKey = new SecretKeySpec(signalingKeyBytes, 0, CIPHER_KEY_SIZE, "AES");
+    this.macs      = new ThreadLocal<Mac>() {
+      @Override
+      protected Mac initialValue() {
+        try {
+          Mac mac = Mac.getInstance("HmacSHA256");
+          mac.init(macKey);
+          return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Verify and decrypt a serialized, encrypted envelope.
+   *
+   * @param ciphertext The serialized and encrypted SignalServiceEnvelope.
+   * @throws InvalidVersionException
+   * @throws IOException If the MAC doesn't match or the envelope can't be decrypted.
+   */
+  public SignalServiceEnvelope decode(byte[] ciphertext) throws InvalidVersionException, IOException {
+    return new SignalServiceEnvelope(decodeEnvelope(ciphertext));
+  }
+
+  Envelope decodeEnvelope(byte[] ciphertext) throws InvalidVersionException, IOException {
+    if (ciphertext.length < VERSION_LENGTH || ciphertext[VERSION_OFFSET] != SUPPORTED_VERSION)
+      throw new InvalidVersionException("Unsupported version!");
+
+    if (ciphertext.length < CIPHERTEXT_OFFSET + MAC_SIZE)
+      throw new IOException("Invalid MAC!");
+
+    verifyMac(ciphertext);
+
+    return Envelope.parseFrom(getPlaintext(ciphertext));
+  }
+
+  private void verifyMac(byte[] ciphertext) throws IOException {
+    Mac mac = macs.get();
+    mac.update(ciphertext, 0, ciphertext.length - MAC_SIZE);
+
+    byte[] ourMac    = mac.doFinal();
+    int    theirMac  = ciphertext.length - MAC_SIZE;
+    int    different = 0;
+
+    for (int i=0;i<MAC_SIZE;i++) {
+      different |= ourMac[i] ^ ciphertext[theirMac + i];
+    }
+
+    if (different != 0) {
+      throw new IOException("Invalid MAC compare!");
+    }
+  }
+
+  private byte[] getPlaintext(byte[] ciphertext) throws IOException {
+    try {
+      Cipher cipher = CIPHERS.get();
+      cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(ciphertext, IV_OFFSET, IV_LENGTH));
+
+      return cipher.doFinal(ciphertext, CIPHERTEXT_OFFSET,
+                            ciphertext.length - VERSION_LENGTH - IV_LENGTH - MAC_SIZE);
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException e) {
+      throw new AssertionError(e);
+    } catch (BadPaddingException e) {
+      throw new IOException("Bad padding?");
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.api.metrics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A simple {@link SignalServiceMetrics} which keeps counters and latency histograms
+ * in memory, for inspection or periodic export by the application.
+ *
+ * Histograms use power-of-two buckets, so percentiles are accurate to within a
+ * factor of two.
+ */
+public class InMemorySignalServiceMetrics implements SignalServiceMetrics {
+
+  private final ConcurrentMap<String, AtomicLong> counters   = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram>  histograms = new ConcurrentHashMap<>();
+
+  @Override
+  public void increment(String name) {
+    AtomicLong counter = counters.get(name);
+
+    if (counter == null) {
+      AtomicLong created = new AtomicLong();
+      counter = counters.putIfAbsent(name, created);
+      if (counter == null) counter = created;
+    }
+
+    counter.incrementAndGet();
+  }
+
+  @Override
+  public void recordTime(String name, long durationNanos) {
+    Histogram histogram = histograms.get(name);
+
+    if (histogram == null) {
+      Histogram created = new Histogram();
+      histogram = histograms.putIfAbsent(name, created);
+      if (histogram == null) histogram = created;
+    }
+
+    histogram.record(durationNanos);
+  }
+
+  public long getCount(String name) {
+    AtomicLong counter = counters.get(name);
+    return counter == null ? 0 : counter.get();
+  }
+
+  public Map<String, Long> getCounters() {
+    Map<String, Long> results = new HashMap<>();
+
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      results.put(entry.getKey(), entry.getValue().get());
+    }
+
+    return Collections.unmodifiableMap(results);
+  }
+
+  public Histogram getHistogram(String name) {
+    return histograms.get(name);
+  }
+
+  public Map<String, Histogram> getHistograms() {
+    return Collections.unmodifiableMap(new HashMap<>(histograms));
+  }
+
+  public void reset() {
+    counters.clear();
+    histograms.clear();
+  }
+
+  public static class Histogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong      count   = new AtomicLong();
+    private final AtomicLong      total   = new AtomicLong();
+    private final AtomicLong      min     = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong      max     = new AtomicLong(Long.MIN_VALUE);
+
+    void record(long value) {
+      if (value < 0) value = 0;
+
+      buckets.incrementAndGet(getBucket(value));
+      count.incrementAndGet();
+      total.addAndGet(value);
+
+      long current;
+
+      while (value < (current = min.get()) && !min.compareAndSet(current, value));
+      while (value > (current = max.get()) && !max.compareAndSet(current, value));
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getTotal() {
+      return total.get();
+    }
+
+    public long getMin() {
+      return count.get() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+      return count.get() == 0 ? 0 : max.get();
+    }
+
+    public long getMean() {
+      long count = this.count.get();
+      return count == 0 ? 0 : total.get() / count;
+    }
+
+    /**
+     * @param percentile A percentile between 0 and 100.
+     * @return The upper bound of the bucket containing the requested percentile.
+     */
+    public long getPercentile(double percentile) {
+      long count = this.count.get();
+
+      if (count == 0) return 0;
+
+      long target     = (long)Math.ceil(count * (percentile / 100.0));
+      long cumulative = 0;
+
+      for (int i=0;i<BUCKET_COUNT;i++) {
+        cumulative += buckets.get(i);
+
+        if (cumulative >= target) {
+          return Math.min(getBucketUpperBound(i), getMax());
+        }
+      }
+
+      return getMax();
+    }
+
+    private static int getBucket(long value) {
+      return BUCKET_COUNT - Long.numberOfLeadingZeros(value);
+    }
+
+    private static long getBucketUpperBound(int bucket) {
+      if (bucket >= BUCKET_COUNT - 1) return Long.MAX_VALUE;
+      else                            return (1L << bucket) - 1;
+    }
+  }
+}
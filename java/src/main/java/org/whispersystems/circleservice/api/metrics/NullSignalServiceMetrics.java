@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.api.metrics;
+
+/**
+ * The default {@link SignalServiceMetrics}, which discards everything.
+ */
+public class NullSignalServiceMetrics implements SignalServiceMetrics {
+
+  @Override
+  public void increment(String name) {}
+
+  @Override
+  public void recordTime(String name, long durationNanos) {}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.api.metrics;
+
+/**
+ * Receives timings and counts from the send and receive paths.
+ *
+ * Implementations are called inline from the threads doing the work, so they must be
+ * thread safe and cheap.  Register one with {@link SignalServiceMetricsProvider#setProvider(SignalServiceMetrics)}.
+ */
+public interface SignalServiceMetrics {
+
+  /** Time spent encrypting a message for a single device. */
+  public static final String ENCRYPT_TIME = "sender.encrypt";
+
+  /** Time spent fetching prekeys and building a new session for a recipient. */
+  public static final String PREKEY_FETCH_TIME = "sender.prekey_fetch";
+
+  /** Messages successfully sent over the authenticated websocket. */
+  public static final String TRANSPORT_PIPE = "sender.transport.pipe";
+
+  /** Messages successfully sent over the unidentified websocket. */
+  public static final String TRANSPORT_UNIDENTIFIED_PIPE = "sender.transport.unidentified_pipe";
+
+  /** Messages successfully sent over REST. */
+  public static final String TRANSPORT_REST = "sender.transport.rest";
+
+  /** Sends retried after a 409 mismatched devices response. */
+  public static final String RETRY_MISMATCHED_DEVICES = "sender.retry.409";
+
+  /** Sends retried after a 410 stale devices response. */
+  public static final String RETRY_STALE_DEVICES = "sender.retry.410";
+
+  /** Prefix for REST responses by status code, eg "http.status.200". */
+  public static final String HTTP_STATUS_PREFIX = "http.status.";
+
+  /** Round trip time of a request over the websocket. */
+  public static final String WEBSOCKET_REQUEST_RTT = "websocket.request_rtt";
+
+  /** Time spent decrypting a received envelope. */
+  public static final String DECRYPT_TIME = "cipher.decrypt";
+
+  /**
+   * Increment a counter by one.
+   *
+   * @param name The counter name.
+   */
+  public void increment(String name);
+
+  /**
+   * Record a single timing.
+   *
+   * @param name The timer name.
+   * @param durationNanos The duration, in nanoseconds.
+   */
+  public void recordTime(String name, long durationNanos);
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.api.metrics;
+
+/**
+ * Holds the {@link SignalServiceMetrics} implementation used by the library.
+ */
+public class SignalServiceMetricsProvider {
+
+  private static volatile SignalServiceMetrics provider = new NullSignalServiceMetrics();
+
+  public static SignalServiceMetrics getProvider() {
+    return provider;
+  }
+
+  public static void setProvider(SignalServiceMetrics provider) {
+    SignalServiceMetricsProvider.provider = provider != null ? provider : new NullSignalServiceMetrics();
+  }
+}
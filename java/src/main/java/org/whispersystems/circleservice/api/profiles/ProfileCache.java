@@ -0,0 +1,201 @@
+package org.whispersystems.circleservice.api.profiles;
+
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.circleservice.api.crypto.UnidentifiedAccess;
+import org.whispersystems.circleservice.api.push.SignalServiceAddress;
+import org.whispersystems.circleservice.internal.util.LRUCache;
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.circleservice.internal.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of recently retrieved profiles, which also coalesces concurrent lookups.
+ *
+ * Profiles are keyed by number and by whether they were retrieved with unidentified access,
+ * since the server may answer the two differently.  While a lookup for a key is in flight,
+ * every other lookup for that key shares its result rather than making its own request.
+ * Only successful lookups are cached.
+ *
+ * A lookup that hasn't completed within the fetch timeout is failed and forgotten, so that
+ * a request which never returns can't hold up later lookups for the same key.  A lookup
+ * that is still in flight when its key is invalidated completes normally, but its result
+ * is not cached.
+ */
+public class ProfileCache {
+
+  public static final int  DEFAULT_MAX_SIZE             = 500;
+  public static final long DEFAULT_TTL_MILLIS           = TimeUnit.MINUTES.toMillis(5);
+  public static final long DEFAULT_FETCH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private final long                    ttlMillis;
+  private final long                    fetchTimeoutMillis;
+  private final LRUCache<String, Entry> profiles;
+  private final Map<String, Lookup>     inFlight = new HashMap<>();
+
+  public ProfileCache(int maxSize, long ttlMillis) {
+    this(maxSize, ttlMillis, DEFAULT_FETCH_TIMEOUT_MILLIS);
+  }
+
+  public ProfileCache(int maxSize, long ttlMillis, long fetchTimeoutMillis) {
+    this.ttlMillis          = ttlMillis;
+    this.fetchTimeoutMillis = fetchTimeoutMillis;
+    this.profiles           = new LRUCache<>(maxSize);
+  }
+
+  /**
+   * @param address The profile to look up.
+   * @param unidentifiedAccess The access to look it up with.
+   * @param fetcher Retrieves the profile if it isn't cached or already being retrieved.
+   * @return A future that completes with the profile, or fails with an IOException.
+   */
+  public ListenableFuture<SignalServiceProfile> get(SignalServiceAddress address,
+                                                    Optional<UnidentifiedAccess> unidentifiedAccess,
+                                                    Fetcher fetcher)
+  {
+    final String       key     = getKey(address.getNumber(), unidentifiedAccess.isPresent());
+    final Lookup       lookup;
+    final List<Lookup> expired;
+
+    synchronized (this) {
+      expired = removeExpiredLookups();
+
+      Entry entry = profiles.get(key);
+
+      if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+        SettableFuture<SignalServiceProfile> cached = new SettableFuture<>();
+        cached.set(entry.profile);
+        return cached;
+      } else if (entry != null) {
+        profiles.remove(key);
+      }
+
+      Lookup pending = inFlight.get(key);
+
+      if (pending != null) {
+        failExpired(expired);
+        return pending.result;
+      }
+
+      lookup = new Lookup(System.currentTimeMillis() + fetchTimeoutMillis);
+      inFlight.put(key, lookup);
+    }
+
+    failExpired(expired);
+
+    ListenableFuture<SignalServiceProfile> fetch;
+
+    try {
+      fetch = fetcher.fetch(address, unidentifiedAccess);
+    } catch (IOException | RuntimeException e) {
+      complete(key, lookup, null, e);
+      return lookup.result;
+    }
+
+    fetch.addListener(new ListenableFuture.Listener<SignalServiceProfile>() {
+      @Override
+      public void onSuccess(SignalServiceProfile profile) {
+        complete(key, lookup, profile, null);
+      }
+
+      @Override
+      public void onFailure(ExecutionException e) {
+        complete(key, lookup, null, e.getCause() instanceof IOException ? e.getCause() : new IOException(e.getCause()));
+      }
+    });
+
+    return lookup.result;
+  }
+
+  public synchronized void invalidate(SignalServiceAddress address) {
+    invalidate(getKey(address.getNumber(), false));
+    invalidate(getKey(address.getNumber(), true));
+  }
+
+  public synchronized void clear() {
+    profiles.clear();
+    inFlight.clear();
+  }
+
+  private void invalidate(String key) {
+    profiles.remove(key);
+    inFlight.remove(key);
+  }
+
+  private void complete(String key, Lookup lookup, SignalServiceProfile profile, Throwable failure) {
+    synchronized (this) {
+      if (inFlight.get(key) == lookup) {
+        inFlight.remove(key);
+
+        if (failure == null) {
+          profiles.put(key, new Entry(profile, System.currentTimeMillis() + ttlMillis));
+        }
+      }
+    }
+
+    if (failure == null) lookup.result.set(profile);
+    else                 lookup.result.setException(failure);
+  }
+
+  private List<Lookup> removeExpiredLookups() {
+    List<Lookup>                        expired  = new LinkedList<>();
+    Iterator<Map.Entry<String, Lookup>> iterator = inFlight.entrySet().iterator();
+    long                                now      = System.currentTimeMillis();
+
+    while (iterator.hasNext()) {
+      Lookup lookup = iterator.next().getValue();
+
+      if (lookup.expiresAt <= now) {
+        expired.add(lookup);
+        iterator.remove();
+      }
+    }
+
+    return expired;
+  }
+
+  private static void failExpired(List<Lookup> expired) {
+    for (Lookup lookup : expired) {
+      lookup.result.setException(new IOException("Profile lookup timed out"));
+    }
+  }
+
+  private static String getKey(String number, boolean unidentified) {
+    return number + (unidentified ? "#unidentified" : "#identified");
+  }
+
+  /**
+   * Retrieves a profile from the service on a cache miss.
+   */
+  public interface Fetcher {
+    public ListenableFuture<SignalServiceProfile> fetch(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess)
+        throws IOException;
+  }
+
+  private static class Lookup {
+    private final SettableFuture<SignalServiceProfile> result = new SettableFuture<>();
+    private final long                                 expiresAt;
+
+    private Lookup(long expiresAt) {
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static class Entry {
+    private final SignalServiceProfile profile;
+    private final long                 expiresAt;
+
+    private Entry(SignalServiceProfile profile, long expiresAt) {
+      this.profile   = profile;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
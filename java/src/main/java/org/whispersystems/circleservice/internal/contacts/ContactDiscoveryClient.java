@@ -0,0 +1,131 @@
+package org.whispersystems.circleservice.internal.contacts;
+
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.whispersystems.curve25519.Curve25519;
+import org.whispersystems.curve25519.Curve25519KeyPair;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.circleservice.internal.contacts.crypto.ContactDiscoveryCipher;
+import org.whispersystems.circleservice.internal.contacts.crypto.Quote;
+import org.whispersystems.circleservice.internal.contacts.crypto.RemoteAttestation;
+import org.whispersystems.circleservice.internal.contacts.crypto.RemoteAttestationKeys;
+import org.whispersystems.circleservice.internal.contacts.crypto.UnauthenticatedQuoteException;
+import org.whispersystems.circleservice.internal.contacts.crypto.UnauthenticatedResponseException;
+import org.whispersystems.circleservice.internal.contacts.entities.DiscoveryRequest;
+import org.whispersystems.circleservice.internal.contacts.entities.DiscoveryResponse;
+import org.whispersystems.circleservice.internal.contacts.entities.RemoteAttestationRequest;
+import org.whispersystems.circleservice.internal.contacts.entities.RemoteAttestationResponse;
+import org.whispersystems.circleservice.internal.push.PushServiceSocket;
+
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.SignatureException;
+import java.util.List;
+
+/**
+ * Runs attested discovery requests against the contact discovery service.
+ *
+ * Verified attestation sessions are reused from a {@link RemoteAttestationCache}.  If a
+ * request made with a cached session fails, the session is dropped and the request is
+ * retried once under a fresh attestation.  One client can be used from several threads
+ * at once.
+ */
+public class ContactDiscoveryClient {
+
+  private static final String TAG = ContactDiscoveryClient.class.getSimpleName();
+
+  private final PushServiceSocket      socket;
+  private final KeyStore               iasKeyStore;
+  private final String                 mrenclave;
+  private final RemoteAttestationCache cache;
+  private final ContactDiscoveryCipher cipher;
+  private final SecureRandom           random;
+
+  public ContactDiscoveryClient(PushServiceSocket socket, KeyStore iasKeyStore, String mrenclave, RemoteAttestationCache cache) {
+    this.socket      = socket;
+    this.iasKeyStore = iasKeyStore;
+    this.mrenclave   = mrenclave;
+    this.cache       = cache;
+    this.cipher      = new ContactDiscoveryCipher();
+    this.random      = new SecureRandom();
+  }
+
+  /**
+   * Look up a range of an address book.
+   *
+   * @param addressBook E.164 numbers without the leading '+', packed as longs.
+   * @param offset The start of the range to look up.
+   * @param length The length of the range to look up.
+   * @return One byte per number in the range, non-zero if that number is registered.
+   */
+  public byte[] discover(long[] addressBook, int offset, int length)
+      throws IOException, Quote.InvalidQuoteFormatException, UnauthenticatedQuoteException, SignatureException, UnauthenticatedResponseException
+  {
+    int                            endpoint = random.nextInt(socket.getContactDiscoveryEndpointCount());
+    String                         url      = socket.getContactDiscoveryEndpointUrl(endpoint);
+    RemoteAttestationCache.Session session  = cache.get(mrenclave, url);
+
+    if (session != null) {
+      try {
+        return discover(endpoint, session, addressBook, offset, length);
+      } catch (IOException | UnauthenticatedResponseException e) {
+        Log.w(TAG, "Cached attestation failed, attesting again", e);
+        cache.invalidate(mrenclave, url, session);
+      }
+    }
+
+    session = attest(endpoint, url);
+
+    try {
+      return discover(endpoint, session, addressBook, offset, length);
+    } catch (IOException | UnauthenticatedResponseException e) {
+      cache.invalidate(mrenclave, url, session);
+      throw e;
+    }
+  }
+
+  private RemoteAttestationCache.Session attest(int endpoint, String url)
+      throws IOException, Quote.InvalidQuoteFormatException, UnauthenticatedQuoteException, SignatureException, UnauthenticatedResponseException
+  {
+    try {
+      String            authorization = socket.getContactDiscoveryAuthorization();
+      Curve25519        curve         = Curve25519.getInstance(Curve25519.BEST);
+      Curve25519KeyPair keyPair       = curve.generateKeyPair();
+
+      RemoteAttestationRequest                      attestationRequest  = new RemoteAttestationRequest(keyPair.getPublicKey());
+      Pair<RemoteAttestationResponse, List<String>> attestationResponse = socket.getContactDiscoveryRemoteAttestation(endpoint, authorization, attestationRequest, mrenclave);
+
+      RemoteAttestationKeys keys      = new RemoteAttestationKeys(keyPair, attestationResponse.first().getServerEphemeralPublic(), attestationResponse.first().getServerStaticPublic());
+      Quote                 quote     = new Quote(attestationResponse.first().getQuote());
+      byte[]                requestId = cipher.getRequestId(keys, attestationResponse.first());
+
+      cipher.verifyServerQuote(quote, attestationResponse.first().getServerStaticPublic(), mrenclave);
+      cipher.verifyIasSignature(iasKeyStore, attestationResponse.first().getCertificates(), attestationResponse.first().getSignatureBody(), attestationResponse.first().getSignature(), quote);
+
+      return cache.put(mrenclave, url, authorization, new RemoteAttestation(requestId, keys), attestationResponse.second(),
+                       cipher.getSignatureExpirationTime(attestationResponse.first().getSignatureBody()));
+    } catch (InvalidCipherTextException e) {
+      throw new UnauthenticatedResponseException(e);
+    }
+  }
+
+  private byte[] discover(int endpoint, RemoteAttestationCache.Session session, long[] addressBook, int offset, int length)
+      throws IOException, UnauthenticatedResponseException
+  {
+    try {
+      DiscoveryRequest  request  = cipher.createDiscoveryRequest(addressBook, offset, length, session.getRemoteAttestation());
+      DiscoveryResponse response = socket.getContactDiscoveryRegisteredUsers(endpoint, session.getAuthorization(), request, session.getCookies(), mrenclave);
+      byte[]            data     = cipher.getDiscoveryResponseData(response, session.getRemoteAttestation());
+
+      if (data.length != length) {
+        throw new UnauthenticatedResponseException("Response length " + data.length + " doesn't match request length " + length);
+      }
+
+      return data;
+    } catch (InvalidCipherTextException e) {
+      throw new UnauthenticatedResponseException(e);
+    }
+  }
+}
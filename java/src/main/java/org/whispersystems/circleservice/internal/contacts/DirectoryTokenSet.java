@@ -0,0 +1,246 @@
+package org.whispersystems.circleservice.internal.contacts;
+
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Directory server tokens for an address book, along with an index from token back to number.
+ *
+ * A token is the first ten bytes of the SHA-1 of a number's E.164 form, Base64 encoded without
+ * padding.  Large address books are split across a short-lived thread pool, each thread reusing
+ * its own digest and scratch buffers, and tokens are encoded straight from the digest into characters.
+ * The reverse lookup is an open addressing table of number indexes, so it costs four bytes
+ * per slot rather than a map entry per token.
+ */
+public class DirectoryTokenSet {
+
+  private static final int TOKEN_LENGTH          = 10;
+  private static final int ENCODED_TOKEN_LENGTH  = 14;
+  private static final int PARALLELISM_THRESHOLD = 4096;
+
+  private static final char[] STANDARD_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  private static final char[] URL_SAFE_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  private static final ThreadLocal<TokenEncoder> ENCODER = new ThreadLocal<TokenEncoder>() {
+    @Override
+    protected TokenEncoder initialValue() {
+      return new TokenEncoder();
+    }
+  };
+
+  private final long[]   numbers;
+  private final String[] tokens;
+  private final int[]    table;
+
+  private DirectoryTokenSet(long[] numbers, String[] tokens) {
+    this.numbers = numbers;
+    this.tokens  = tokens;
+    this.table   = createTable(tokens);
+  }
+
+  /**
+   * @param numbers E.164 numbers, packed as longs without the leading '+'.
+   * @param urlSafe Whether to use the URL safe Base64 alphabet.
+   */
+  public static DirectoryTokenSet create(long[] numbers, boolean urlSafe) {
+    char[]   alphabet = urlSafe ? URL_SAFE_ALPHABET : STANDARD_ALPHABET;
+    String[] tokens   = new String[numbers.length];
+
+    int      threads  = Math.min(Runtime.getRuntime().availableProcessors(), numbers.length / PARALLELISM_THRESHOLD);
+
+    if (threads <= 1) createTokens(numbers, tokens, alphabet, 0, numbers.length);
+    else              createTokensInParallel(numbers, tokens, alphabet, threads);
+
+    return new DirectoryTokenSet(numbers, tokens);
+  }
+
+  public static String createToken(String e164number, boolean urlSafe) {
+    TokenEncoder encoder = ENCODER.get();
+    int          length  = e164number.length();
+    byte[]       input   = length <= encoder.input.length ? encoder.input : new byte[length];
+
+    for (int i=0;i<length;i++) {
+      input[i] = (byte)e164number.charAt(i);
+    }
+
+    return encoder.encode(input, length, urlSafe ? URL_SAFE_ALPHABET : STANDARD_ALPHABET);
+  }
+
+  public int size() {
+    return tokens.length;
+  }
+
+  public String getToken(int index) {
+    return tokens[index];
+  }
+
+  public String getE164Number(int index) {
+    return "+" + numbers[index];
+  }
+
+  public List<String> getTokens(int offset, int length) {
+    return Arrays.asList(tokens).subList(offset, offset + length);
+  }
+
+  /**
+   * @return The index of the number the token was created from, or -1 if it isn't in this set.
+   */
+  public int indexOf(String token) {
+    int mask = table.length - 1;
+
+    for (int slot=mix(token.hashCode()) & mask;table[slot] != 0;slot=(slot + 1) & mask) {
+      int index = table[slot] - 1;
+      if (tokens[index].equals(token)) return index;
+    }
+
+    return -1;
+  }
+
+  private static void createTokens(long[] numbers, String[] tokens, char[] alphabet, int offset, int length) {
+    TokenEncoder encoder = ENCODER.get();
+
+    for (int i=offset;i<offset+length;i++) {
+      tokens[i] = encoder.encode(numbers[i], alphabet);
+    }
+  }
+
+  private static void createTokensInParallel(final long[] numbers, final String[] tokens, final char[] alphabet, int threads) {
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "DirectoryTokenSet");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    boolean interrupted = false;
+
+    try {
+      List<Future<?>> futures = new LinkedList<>();
+      int             chunk   = (numbers.length + threads - 1) / threads;
+
+      for (int offset=0;offset<numbers.length;offset+=chunk) {
+        final int start  = offset;
+        final int length = Math.min(chunk, numbers.length - offset);
+
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            createTokens(numbers, tokens, alphabet, start, length);
+          }
+        }));
+      }
+
+      for (Future<?> future : futures) {
+        while (true) {
+          try {
+            future.get();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+    } catch (ExecutionException e) {
+      throw new AssertionError(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private static int[] createTable(String[] tokens) {
+    int capacity = Integer.highestOneBit(Math.max(tokens.length, 1) * 2 - 1) << 1;
+    int mask     = capacity - 1;
+    int[] table  = new int[capacity];
+
+    for (int i=0;i<tokens.length;i++) {
+      int slot = mix(tokens[i].hashCode()) & mask;
+
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+
+      table[slot] = i + 1;
+    }
+
+    return table;
+  }
+
+  private static int mix(int hash) {
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private static class TokenEncoder {
+
+    private final MessageDigest digest;
+    private final byte[]        input   = new byte[20];
+    private final byte[]        hash    = new byte[20];
+    private final char[]        encoded = new char[ENCODED_TOKEN_LENGTH];
+
+    private TokenEncoder() {
+      try {
+        this.digest = MessageDigest.getInstance("SHA1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private String encode(long number, char[] alphabet) {
+      int length = 1;
+
+      for (long remaining=number;remaining>=10;remaining/=10) {
+        length++;
+      }
+
+      input[0] = '+';
+
+      for (int i=length;i>0;i--) {
+        input[i] = (byte)('0' + number % 10);
+        number  /= 10;
+      }
+
+      return encode(input, length + 1, alphabet);
+    }
+
+    private String encode(byte[] input, int length, char[] alphabet) {
+      try {
+        digest.update(input, 0, length);
+        digest.digest(hash, 0, hash.length);
+      } catch (DigestException e) {
+        throw new AssertionError(e);
+      }
+
+      int position = 0;
+
+      for (int i=0;i<TOKEN_LENGTH-1;i+=3) {
+        int group = ((hash[i] & 0xff) << 16) | ((hash[i + 1] & 0xff) << 8) | (hash[i + 2] & 0xff);
+
+        encoded[position++] = alphabet[(group >>> 18) & 0x3f];
+        encoded[position++] = alphabet[(group >>> 12) & 0x3f];
+        encoded[position++] = alphabet[(group >>> 6) & 0x3f];
+        encoded[position++] = alphabet[group & 0x3f];
+      }
+
+      int last = hash[TOKEN_LENGTH - 1] & 0xff;
+
+      encoded[position++] = alphabet[last >>> 2];
+      encoded[position]   = alphabet[(last & 0x03) << 4];
+
+      return new String(encoded);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.whispersystems.circleservice.internal.contacts;
+
+
+import org.whispersystems.circleservice.internal.contacts.crypto.RemoteAttestation;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verified remote attestation sessions, keyed by enclave and endpoint.
+ *
+ * A session is kept until its TTL elapses or its IAS signature expires, whichever is
+ * sooner, so that back-to-back discovery requests can skip the attestation handshake
+ * and certificate path validation.  Callers should {@link #invalidate(String, String, Session)}
+ * a session as soon as a request made with it fails.
+ */
+public class RemoteAttestationCache {
+
+  private final long                 ttlMillis;
+  private final Map<String, Session> sessions = new HashMap<>();
+
+  public RemoteAttestationCache(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+  }
+
+  public synchronized Session get(String mrenclave, String endpoint) {
+    String  key     = getKey(mrenclave, endpoint);
+    Session session = sessions.get(key);
+
+    if (session != null && session.expiresAt <= System.currentTimeMillis()) {
+      sessions.remove(key);
+      return null;
+    }
+
+    return session;
+  }
+
+  public synchronized Session put(String mrenclave, String endpoint, String authorization,
+                                  RemoteAttestation remoteAttestation, List<String> cookies,
+                                  long signatureExpiresAt)
+  {
+    long    expiresAt = Math.min(System.currentTimeMillis() + ttlMillis, signatureExpiresAt);
+    Session session   = new Session(authorization, remoteAttestation, cookies, expiresAt);
+
+    sessions.put(getKey(mrenclave, endpoint), session);
+
+    return session;
+  }
+
+  public synchronized void invalidate(String mrenclave, String endpoint, Session session) {
+    String key = getKey(mrenclave, endpoint);
+
+    if (sessions.get(key) == session) {
+      sessions.remove(key);
+    }
+  }
+
+  public synchronized void clear() {
+    sessions.clear();
+  }
+
+  private static String getKey(String mrenclave, String endpoint) {
+    return mrenclave + "@" + endpoint;
+  }
+
+  public static class Session {
+    private final String            authorization;
+    private final RemoteAttestation remoteAttestation;
+    private final List<String>      cookies;
+    private final long              expiresAt;
+
+    private Session(String authorization, RemoteAttestation remoteAttestation, List<String> cookies, long expiresAt) {
+      this.authorization     = authorization;
+      this.remoteAttestation = remoteAttestation;
+      this.cookies           = cookies;
+      this.expiresAt         = expiresAt;
+    }
+
+    public String getAuthorization() {
+      return authorization;
+    }
+
+    public RemoteAttestation getRemoteAttestation() {
+      return remoteAttestation;
+    }
+
+    public List<String> getCookies() {
+      return cookies;
+    }
+  }
+}
@@ -21,7 +21,6 @@ import org.whispersystems.circleservice.internal.util.Hex;
 import org.whispersystems.circleservice.internal.util.JsonUtil;
 import org.whispersystems.circleservice.internal.util.Util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.KeyStore;
 import java.security.MessageDigest;
@@ -37,31 +36,48 @@ public class ContactDiscoveryCipher {
   private static final long SIGNATURE_BODY_VERSION = 3L;
 
   public DiscoveryRequest createDiscoveryRequest(List<String> addressBook, RemoteAttestation remoteAttestation) {
+    long[] numbers = new long[addressBook.size()];
+    int    index   = 0;
+
+    for (String address : addressBook) {
+      numbers[index++] = Long.parseLong(address);
+    }
+
+    return createDiscoveryRequest(numbers, 0, numbers.length, remoteAttestation);
+  }
+
+  /**
+   * Build an encrypted discovery request for a range of an address book whose numbers
+   * are already packed as longs (E.164 digits, without the leading '+').
+   */
+  public DiscoveryRequest createDiscoveryRequest(long[] addressBook, int offset, int length, RemoteAttestation remoteAttestation) {
     try {
-      ByteArrayOutputStream requestDataStream = new ByteArrayOutputStream();
+      byte[] requestData = new byte[length * 8];
+
+      for (int i=0;i<length;i++) {
+        long address = addressBook[offset + i];
 
-      for (String address : addressBook) {
-        requestDataStream.write(ByteUtil.longToByteArray(Long.parseLong(address)));
+        for (int j=7;j>=0;j--) {
+          requestData[i * 8 + j] = (byte)address;
+          address >>>= 8;
+        }
       }
 
-      byte[]         requestData = requestDataStream.toByteArray();
-      byte[]         nonce       = Util.getSecretBytes(12);
-      GCMBlockCipher cipher      = new GCMBlockCipher(new AESFastEngine());
+      byte[]         nonce  = Util.getSecretBytes(12);
+      GCMBlockCipher cipher = new GCMBlockCipher(new AESFastEngine());
 
       cipher.init(true, new AEADParameters(new KeyParameter(remoteAttestation.getKeys().getClientKey()), TAG_LENGTH_BITS, nonce));
       cipher.processAADBytes(remoteAttestation.getRequestId(), 0, remoteAttestation.getRequestId().length);
 
-      byte[] cipherText1 = new byte[cipher.getUpdateOutputSize(requestData.length)];
-      cipher.processBytes(requestData, 0, requestData.length, cipherText1, 0);
+      byte[] cipherText = new byte[cipher.getOutputSize(requestData.length)];
+      int    written    = cipher.processBytes(requestData, 0, requestData.length, cipherText, 0);
 
-      byte[] cipherText2 = new byte[cipher.getOutputSize(0)];
-      cipher.doFinal(cipherText2, 0);
+      written += cipher.doFinal(cipherText, written);
 
-      byte[]   cipherText = ByteUtil.combine(cipherText1, cipherText2);
-      byte[][] parts      = ByteUtil.split(cipherText, cipherText.length - TAG_LENGTH_BYTES, TAG_LENGTH_BYTES);
+      byte[][] parts = ByteUtil.split(cipherText, written - TAG_LENGTH_BYTES, TAG_LENGTH_BYTES);
 
-      return new DiscoveryRequest(addressBook.size(), remoteAttestation.getRequestId(), nonce, parts[0], parts[1]);
-    } catch (IOException | InvalidCipherTextException e) {
+      return new DiscoveryRequest(length, remoteAttestation.getRequestId(), nonce, parts[0], parts[1]);
+    } catch (InvalidCipherTextException e) {
       throw new AssertionError(e);
     }
   }
@@ -124,10 +140,7 @@ public class ContactDiscoveryCipher {
         throw new SignatureException("Quote status is: " + signatureBodyEntity.getIsvEnclaveQuoteStatus());
       }
 
-      if (Instant.from(ZonedDateTime.of(LocalDateTime.from(DateTimeFormatter.ofPattern("yyy-MM-dd'T'HH:mm:ss.SSSSSS").parse(signatureBodyEntity.getTimestamp())), ZoneId.of("UTC")))
-                 .plus(Period.ofDays(1))
-                 .isBefore(Instant.now()))
-      {
+      if (getSignatureExpiration(signatureBodyEntity).isBefore(Instant.now())) {
         throw new SignatureException("Signature is expired");
       }
 
@@ -136,6 +149,23 @@ public class ContactDiscoveryCipher {
     }
   }
 
+  /**
+   * @return The time, in milliseconds since the epoch, after which an IAS signature body
+   *         will no longer pass {@link #verifyIasSignature(KeyStore, String, String, String, Quote)}.
+   */
+  public long getSignatureExpirationTime(String signatureBody) throws SignatureException {
+    try {
+      return getSignatureExpiration(JsonUtil.fromJson(signatureBody, SignatureBodyEntity.class)).toEpochMilli();
+    } catch (IOException e) {
+      throw new SignatureException(e);
+    }
+  }
+
+  private Instant getSignatureExpiration(SignatureBodyEntity signatureBodyEntity) {
+    return Instant.from(ZonedDateTime.of(LocalDateTime.from(DateTimeFormatter.ofPattern("yyy-MM-dd'T'HH:mm:ss.SSSSSS").parse(signatureBodyEntity.getTimestamp())), ZoneId.of("UTC")))
+                  .plus(Period.ofDays(1));
+  }
+
   private byte[] decrypt(byte[] key, byte[] iv, byte[] ciphertext, byte[] tag) throws InvalidCipherTextException {
     GCMBlockCipher cipher = new GCMBlockCipher(new AESFastEngine());
     cipher.init(false, new AEADParameters(new KeyParameter(key), 128, iv));
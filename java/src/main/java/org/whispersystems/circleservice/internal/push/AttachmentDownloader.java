@@ -0,0 +1,613 @@
+/*
+ * Copyright (C) 2014-2018 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.internal.push;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.circleservice.api.messages.SignalServiceAttachment.ProgressListener;
+import org.whispersystems.circleservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.circleservice.api.push.exceptions.PushNetworkException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads large objects as a number of HTTP Range requests, issued in parallel
+ * and written directly into place in a preallocated file.
+ *
+ * Completed segments are recorded in a small state file next to the destination,
+ * so that a download which fails part way through can pick up where it left off
+ * the next time it's attempted, rather than starting again from the first byte.
+ * The state file records the url and the object's ETag or Last-Modified date, and
+ * resumed segments are requested with If-Range, so if the object has changed in the
+ * meantime the download starts over rather than mixing the two.  Objects without a
+ * validator are never resumed.  Servers which don't honor Range requests are
+ * downloaded sequentially.
+ */
+public class AttachmentDownloader {
+
+  private static final String TAG = AttachmentDownloader.class.getSimpleName();
+
+  public static final int DEFAULT_PARALLELISM  = 4;
+  public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+  private static final int     BUFFER_SIZE   = 32768;
+  private static final int     STATE_VERSION = 2;
+  private static final String  STATE_SUFFIX  = ".partial";
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+  private final Set<Call>          connections;
+  private final int                parallelism;
+  private final int                segmentSize;
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param connections In-flight calls are registered here while they run, so that
+   *                    they can be canceled.  Must be synchronized on for access.
+   * @param parallelism The maximum number of segments to download at once.
+   * @param segmentSize The number of bytes requested by each Range request.
+   */
+  public AttachmentDownloader(Set<Call> connections, int parallelism, int segmentSize) {
+    this.connections = connections;
+    this.parallelism = parallelism;
+    this.segmentSize = segmentSize;
+    this.executor    = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger counter = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "AttachmentDownloader-" + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Download url to destination, resuming a previous partial download of the same
+   * url to the same destination if there is one.
+   *
+   * @param client The client to issue requests with.  Its connection pool is shared
+   *               by all of the segment requests.
+   * @param url The object to download.
+   * @param destination Where to write it.
+   * @param maxSizeBytes The largest object to accept.
+   * @param listener An optional listener (may be null) to receive callbacks on download progress.
+   */
+  public void download(OkHttpClient client, String url, File destination, long maxSizeBytes, ProgressListener listener)
+      throws IOException
+  {
+    File stateFile = new File(destination.getPath() + STATE_SUFFIX);
+
+    try {
+      download(client, url, destination, stateFile, maxSizeBytes, listener);
+    } catch (ObjectChangedException e) {
+      Log.w(TAG, "Object changed since the partial download of " + destination + ", starting over", e);
+      destination.delete();
+      stateFile.delete();
+
+      download(client, url, destination, stateFile, maxSizeBytes, listener);
+    }
+  }
+
+  private void download(OkHttpClient client, String url, File destination, File stateFile, long maxSizeBytes, ProgressListener listener)
+      throws IOException
+  {
+    DownloadState state = destination.exists() ? DownloadState.read(stateFile, url, segmentSize) : null;
+
+    if (state == null) {
+      state = startDownload(client, url, destination, stateFile, maxSizeBytes, listener);
+      if (state == null) return;
+    } else {
+      Log.w(TAG, "Resuming " + destination + " with " + state.getCompletedCount() + "/" + state.getSegmentCount() + " segments complete");
+    }
+
+    if (state.getTotalLength() > maxSizeBytes) {
+      throw exceedsMaxSize(destination, stateFile);
+    }
+
+    RandomAccessFile file = new RandomAccessFile(destination, "rw");
+
+    try {
+      file.setLength(state.getTotalLength());
+      downloadRemainingSegments(client, url, file.getChannel(), state, stateFile, listener);
+    } finally {
+      file.close();
+    }
+
+    stateFile.delete();
+  }
+
+  /**
+   * Fetch the first segment, which tells us the object's length and whether the server
+   * supports Range requests at all.
+   *
+   * @return The state of the download, or null if the server ignored the Range request
+   *         and the whole object has already been downloaded.
+   */
+  private DownloadState startDownload(OkHttpClient client, String url, File destination, File stateFile, long maxSizeBytes, ProgressListener listener)
+      throws IOException
+  {
+    Call call = client.newCall(createRequest(url, 0, segmentSize - 1, null));
+
+    trackCall(call);
+
+    try {
+      Response response = call.execute();
+
+      try {
+        ResponseBody body = response.body();
+
+        if (body == null) throw new PushNetworkException("No response body!");
+
+        if (response.code() == 200) {
+          Log.w(TAG, "Server doesn't support range requests, downloading sequentially");
+
+          if (body.contentLength() > maxSizeBytes) {
+            throw exceedsMaxSize(destination, stateFile);
+          }
+
+          FileOutputStream output = new FileOutputStream(destination);
+
+          try {
+            if (writeBody(body.byteStream(), output.getChannel(), 0, maxSizeBytes, body.contentLength(), new AtomicLong(), new AtomicBoolean(), listener) > maxSizeBytes) {
+              throw exceedsMaxSize(destination, stateFile);
+            }
+          } finally {
+            output.close();
+          }
+
+          stateFile.delete();
+          return null;
+        }
+
+        if (response.code() != 206) {
+          throw new NonSuccessfulResponseCodeException("Bad response: " + response.code());
+        }
+
+        long[] contentRange = getContentRange(response);
+
+        if (contentRange[0] != 0) {
+          throw new PushNetworkException("Unexpected range: " + response.header("Content-Range"));
+        }
+
+        if (contentRange[2] > maxSizeBytes) {
+          throw exceedsMaxSize(destination, stateFile);
+        }
+
+        DownloadState    state = new DownloadState(url, getValidator(response), contentRange[2], segmentSize);
+        RandomAccessFile file  = new RandomAccessFile(destination, "rw");
+
+        try {
+          file.setLength(state.getTotalLength());
+          long written = writeBody(body.byteStream(), file.getChannel(), 0, state.getSegmentLength(0), state.getTotalLength(), state.getDownloaded(), new AtomicBoolean(), listener);
+
+          if (written != state.getSegmentLength(0)) {
+            throw new PushNetworkException("Unexpected response length!");
+          }
+        } finally {
+          file.close();
+        }
+
+        state.markComplete(0);
+        state.write(stateFile);
+
+        return state;
+      } finally {
+        response.close();
+      }
+    } catch (NonSuccessfulResponseCodeException | PushNetworkException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    } finally {
+      untrackCall(call);
+    }
+  }
+
+  private void downloadRemainingSegments(final OkHttpClient client, final String url, final FileChannel channel,
+                                         final DownloadState state, final File stateFile, final ProgressListener listener)
+      throws IOException
+  {
+    final AtomicInteger              nextSegment = new AtomicInteger(0);
+    final AtomicBoolean              canceled    = new AtomicBoolean(false);
+    final AtomicReference<Exception> failure     = new AtomicReference<>();
+    final List<Integer>              remaining   = state.getIncompleteSegments();
+    final List<Future<Void>>         futures     = new LinkedList<>();
+
+    if (remaining.isEmpty()) return;
+
+    for (int i=0;i<Math.min(parallelism, remaining.size());i++) {
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          int index;
+
+          try {
+            while (!canceled.get() && (index = nextSegment.getAndIncrement()) < remaining.size()) {
+              int segment = remaining.get(index);
+
+              downloadSegment(client, url, channel, state, segment, canceled, listener);
+
+              // A segment is only recorded once its bytes are on disk, so a resume
+              // after a crash never trusts data that was still in the page cache.
+              channel.force(false);
+
+              synchronized (state) {
+                if (canceled.get()) break;
+
+                state.markComplete(segment);
+                state.write(stateFile);
+              }
+            }
+          } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+            canceled.set(true);
+            throw e;
+          }
+
+          return null;
+        }
+      }));
+    }
+
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure.compareAndSet(null, new PushNetworkException(e));
+    } catch (ExecutionException e) {
+      failure.compareAndSet(null, new PushNetworkException(e));
+    } finally {
+      synchronized (state) {
+        canceled.set(true);
+      }
+
+      awaitQuietly(futures);
+    }
+
+    if      (failure.get() instanceof IOException)      throw (IOException)failure.get();
+    else if (failure.get() instanceof RuntimeException) throw (RuntimeException)failure.get();
+  }
+
+  /**
+   * Wait for every worker to stop, so that none of them is still writing to the
+   * destination or the state file once the download has returned or thrown.  Workers
+   * are stopped cooperatively rather than interrupted, since interrupting a thread
+   * that's writing to a FileChannel closes the channel for every other worker too.
+   */
+  private static void awaitQuietly(List<Future<Void>> futures) {
+    boolean interrupted = Thread.interrupted();
+
+    for (Future<Void> future : futures) {
+      future.cancel(false);
+
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException | CancellationException e) {
+          break;
+        }
+      }
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private void downloadSegment(OkHttpClient client, String url, FileChannel channel, DownloadState state, int segment,
+                               AtomicBoolean canceled, ProgressListener listener)
+      throws IOException
+  {
+    long start  = state.getSegmentStart(segment);
+    long length = state.getSegmentLength(segment);
+    Call call   = client.newCall(createRequest(url, start, start + length - 1, state.getValidator()));
+
+    trackCall(call);
+
+    try {
+      Response response = call.execute();
+
+      try {
+        if (state.getValidator() != null && (response.code() == 200 || (response.code() == 206 && !state.getValidator().equals(getValidator(response))))) {
+          throw new ObjectChangedException("Validator no longer matches " + state.getValidator());
+        }
+
+        if (response.code() != 206) {
+          throw new NonSuccessfulResponseCodeException("Bad response: " + response.code());
+        }
+
+        long[] contentRange = getContentRange(response);
+
+        if (contentRange[0] != start || contentRange[2] != state.getTotalLength()) {
+          throw new PushNetworkException("Unexpected range: " + response.header("Content-Range"));
+        }
+
+        ResponseBody body = response.body();
+
+        if (body == null) throw new PushNetworkException("No response body!");
+
+        long written = writeBody(body.byteStream(), channel, start, length, state.getTotalLength(), state.getDownloaded(), canceled, listener);
+
+        if (written != length) {
+          throw new PushNetworkException("Unexpected response length!");
+        }
+      } finally {
+        response.close();
+      }
+    } catch (NonSuccessfulResponseCodeException | PushNetworkException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    } finally {
+      untrackCall(call);
+    }
+  }
+
+  /**
+   * @return The number of bytes read, which is more than maxLength if the body was
+   *         longer than that.
+   */
+  private static long writeBody(InputStream in, FileChannel channel, long position, long maxLength,
+                                long totalLength, AtomicLong downloaded, AtomicBoolean canceled,
+                                ProgressListener listener)
+      throws IOException
+  {
+    byte[]     buffer     = new byte[BUFFER_SIZE];
+    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    long       written    = 0;
+    int        read;
+
+    while ((read = in.read(buffer)) != -1) {
+      if (canceled.get()) {
+        throw new PushNetworkException("Download canceled");
+      }
+
+      if ((written += read) > maxLength) {
+        return written;
+      }
+
+      byteBuffer.clear().limit(read);
+
+      while (byteBuffer.hasRemaining()) {
+        position += channel.write(byteBuffer, position);
+      }
+
+      long totalDownloaded = downloaded.addAndGet(read);
+
+      if (listener != null) {
+        listener.onAttachmentProgress(totalLength, totalDownloaded);
+      }
+    }
+
+    return written;
+  }
+
+  private static NonSuccessfulResponseCodeException exceedsMaxSize(File destination, File stateFile) {
+    destination.delete();
+    stateFile.delete();
+
+    return new NonSuccessfulResponseCodeException("File exceeds maximum size.");
+  }
+
+  private static Request createRequest(String url, long start, long end, String validator) {
+    Request.Builder builder = new Request.Builder().url(url)
+                                                   .header("Range", "bytes=" + start + "-" + end)
+                                                   .get();
+
+    if (validator != null) {
+      builder.header("If-Range", validator);
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * @return The response's strong ETag if it has one, otherwise its Last-Modified date,
+   *         or null if it has neither.  Weak ETags can't be used with If-Range.
+   */
+  private static String getValidator(Response response) {
+    String etag = response.header("ETag");
+
+    if (etag != null && !etag.startsWith("W/")) return etag;
+    else                                        return response.header("Last-Modified");
+  }
+
+  private static long[] getContentRange(Response response) throws PushNetworkException {
+    String header = response.header("Content-Range");
+
+    if (header == null) {
+      throw new PushNetworkException("No Content-Range in partial response!");
+    }
+
+    Matcher matcher = CONTENT_RANGE.matcher(header);
+
+    if (!matcher.matches()) {
+      throw new PushNetworkException("Bad Content-Range: " + header);
+    }
+
+    return new long[] {Long.parseLong(matcher.group(1)),
+                       Long.parseLong(matcher.group(2)),
+                       Long.parseLong(matcher.group(3))};
+  }
+
+  private void trackCall(Call call) {
+    synchronized (connections) {
+      connections.add(call);
+    }
+  }
+
+  private void untrackCall(Call call) {
+    synchronized (connections) {
+      connections.remove(call);
+    }
+  }
+
+  private static class DownloadState {
+
+    private final String     url;
+    private final String     validator;
+    private final long       totalLength;
+    private final int        segmentSize;
+    private final int        segmentCount;
+    private final BitSet     completed;
+    private final AtomicLong downloaded;
+
+    private DownloadState(String url, String validator, long totalLength, int segmentSize) {
+      this(url, validator, totalLength, segmentSize, new BitSet());
+    }
+
+    private DownloadState(String url, String validator, long totalLength, int segmentSize, BitSet completed) {
+      this.url          = url;
+      this.validator    = validator;
+      this.totalLength  = totalLength;
+      this.segmentSize  = segmentSize;
+      this.segmentCount = (int)((totalLength + segmentSize - 1) / segmentSize);
+      this.completed    = completed;
+      this.downloaded   = new AtomicLong(0);
+
+      for (int i=completed.nextSetBit(0);i>=0;i=completed.nextSetBit(i+1)) {
+        downloaded.addAndGet(getSegmentLength(i));
+      }
+    }
+
+    public String getValidator() {
+      return validator;
+    }
+
+    public long getTotalLength() {
+      return totalLength;
+    }
+
+    public int getSegmentCount() {
+      return segmentCount;
+    }
+
+    public synchronized int getCompletedCount() {
+      return completed.cardinality();
+    }
+
+    public AtomicLong getDownloaded() {
+      return downloaded;
+    }
+
+    public long getSegmentStart(int segment) {
+      return (long)segment * segmentSize;
+    }
+
+    public long getSegmentLength(int segment) {
+      return Math.min(segmentSize, totalLength - getSegmentStart(segment));
+    }
+
+    public synchronized List<Integer> getIncompleteSegments() {
+      List<Integer> segments = new LinkedList<>();
+
+      for (int i=completed.nextClearBit(0);i<segmentCount;i=completed.nextClearBit(i+1)) {
+        segments.add(i);
+      }
+
+      return segments;
+    }
+
+    public synchronized void markComplete(int segment) {
+      completed.set(segment);
+    }
+
+    public synchronized void write(File stateFile) throws IOException {
+      if (validator == null) return;
+
+      byte[]           bitmap = completed.toByteArray();
+      DataOutputStream out    = new DataOutputStream(new FileOutputStream(stateFile));
+
+      try {
+        out.writeInt(STATE_VERSION);
+        out.writeUTF(url);
+        out.writeUTF(validator);
+        out.writeLong(totalLength);
+        out.writeInt(segmentSize);
+        out.writeInt(bitmap.length);
+        out.write(bitmap);
+      } finally {
+        out.close();
+      }
+    }
+
+    public static DownloadState read(File stateFile, String url, int segmentSize) {
+      if (!stateFile.exists()) return null;
+
+      try {
+        DataInputStream in = new DataInputStream(new FileInputStream(stateFile));
+
+        try {
+          if (in.readInt() != STATE_VERSION) return null;
+
+          String savedUrl         = in.readUTF();
+          String validator        = in.readUTF();
+          long   totalLength      = in.readLong();
+          int    savedSegmentSize = in.readInt();
+          byte[] bitmap           = new byte[in.readInt()];
+
+          in.readFully(bitmap);
+
+          if (savedSegmentSize != segmentSize) return null;
+          if (!savedUrl.equals(url))           return null;
+
+          return new DownloadState(url, validator, totalLength, segmentSize, BitSet.valueOf(bitmap));
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        return null;
+      }
+    }
+  }
+
+  private static class ObjectChangedException extends PushNetworkException {
+    private ObjectChangedException(String message) {
+      super(message);
+    }
+  }
+}
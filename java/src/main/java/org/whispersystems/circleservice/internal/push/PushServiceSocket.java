@@ -7,7 +7,10 @@
 package org.whispersystems.circleservice.internal.push;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
@@ -22,6 +25,8 @@ import org.whispersystems.circleservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.circleservice.api.messages.SignalServiceAttachment.ProgressListener;
 import org.whispersystems.circleservice.api.messages.calls.TurnServerInfo;
 import org.whispersystems.circleservice.api.messages.multidevice.DeviceInfo;
+import org.whispersystems.circleservice.api.metrics.SignalServiceMetrics;
+import org.whispersystems.circleservice.api.metrics.SignalServiceMetricsProvider;
 import org.whispersystems.circleservice.api.profiles.SignalServiceProfile;
 import org.whispersystems.circleservice.api.push.ContactTokenDetails;
 import org.whispersystems.circleservice.api.push.SignalServiceAddress;
@@ -43,11 +48,14 @@ import org.whispersystems.circleservice.internal.contacts.entities.RemoteAttesta
 import org.whispersystems.circleservice.internal.push.exceptions.MismatchedDevicesException;
 import org.whispersystems.circleservice.internal.push.exceptions.StaleDevicesException;
 import org.whispersystems.circleservice.internal.push.http.DigestingRequestBody;
+import org.whispersystems.circleservice.internal.push.http.JsonRequestBody;
 import org.whispersystems.circleservice.internal.push.http.OutputStreamFactory;
 import org.whispersystems.circleservice.internal.util.Base64;
 import org.whispersystems.circleservice.internal.util.BlacklistingTrustManager;
 import org.whispersystems.circleservice.internal.util.JsonUtil;
 import org.whispersystems.circleservice.internal.util.Util;
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.circleservice.internal.util.concurrent.SettableFuture;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -55,27 +63,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
 import okhttp3.ConnectionSpec;
 import okhttp3.Credentials;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
@@ -83,6 +93,7 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.BufferedSource;
 
 /**
  * @author Moxie Marlinspike
@@ -120,24 +131,57 @@ public class PushServiceSocket {
 
   private static final String SENDER_CERTIFICATE_PATH   = "/v1/certificate/delivery";
 
+  private static final MediaType JSON_MEDIA_TYPE = MediaType.parse("application/json");
+
+  private static final List<ConnectionSpec> SERVICE_CONNECTION_SPECS           = Util.immutableList(ConnectionSpec.MODERN_TLS, ConnectionSpec.CLEARTEXT);
+  private static final List<ConnectionSpec> CDN_CONNECTION_SPECS               = Util.immutableList(ConnectionSpec.MODERN_TLS, ConnectionSpec.CLEARTEXT);
+  private static final List<ConnectionSpec> CONTACT_DISCOVERY_CONNECTION_SPECS = Util.immutableList(ConnectionSpec.MODERN_TLS, ConnectionSpec.COMPATIBLE_TLS);
+
+  private static final int  MAX_IDLE_CONNECTIONS       = 10;
+  private static final long KEEP_ALIVE_DURATION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  private static final int  MAX_REQUESTS               = 128;
+  private static final int  MAX_REQUESTS_PER_HOST      = 64;
+
   private       long      soTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
   private final Set<Call> connections     = new HashSet<>();
 
-  private final ConnectionHolder[]  serviceClients;
-  private final ConnectionHolder[]  cdnClients;
-  private final ConnectionHolder[]  contactDiscoveryClients;
+  private final SignalServiceConfiguration signalServiceConfiguration;
+  private final ConnectionPool             connectionPool;
+  private final Dispatcher                 dispatcher;
+  private final ExecutorService            attachmentExecutor;
+
+  private volatile ConnectionHolder[] serviceClients;
+  private volatile ConnectionHolder[] cdnClients;
+  private volatile ConnectionHolder[] contactDiscoveryClients;
+  private volatile OkHttpClient       attachmentClient;
+
+  private final AttachmentDownloader attachmentDownloader;
 
   private final CredentialsProvider credentialsProvider;
   private final String              userAgent;
   private final SecureRandom        random;
 
   public PushServiceSocket(SignalServiceConfiguration signalServiceConfiguration, CredentialsProvider credentialsProvider, String userAgent) {
-    this.credentialsProvider     = credentialsProvider;
-    this.userAgent               = userAgent;
-    this.serviceClients          = createConnectionHolders(signalServiceConfiguration.getSignalServiceUrls());
-    this.cdnClients              = createConnectionHolders(signalServiceConfiguration.getSignalCdnUrls());
-    this.contactDiscoveryClients = createConnectionHolders(signalServiceConfiguration.getSignalContactDiscoveryUrls());
-    this.random                  = new SecureRandom();
+    this.signalServiceConfiguration = signalServiceConfiguration;
+    this.credentialsProvider        = credentialsProvider;
+    this.userAgent                  = userAgent;
+    this.random                     = new SecureRandom();
+    this.connectionPool             = new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MILLIS, TimeUnit.MILLISECONDS);
+    this.dispatcher                 = new Dispatcher();
+    this.attachmentExecutor         = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "PushServiceSocket-attachment");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.attachmentDownloader       = new AttachmentDownloader(connections, AttachmentDownloader.DEFAULT_PARALLELISM, AttachmentDownloader.DEFAULT_SEGMENT_SIZE);
+
+    this.dispatcher.setMaxRequests(MAX_REQUESTS);
+    this.dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+    createClients();
   }
 
   public void createAccount(boolean voice) throws IOException {
@@ -210,18 +254,92 @@ public class PushServiceSocket {
       throws IOException
   {
     try {
-      String responseText = makeServiceRequest(String.format(MESSAGE_PATH, bundle.getDestination()), "PUT", JsonUtil.toJson(bundle), unidentifiedAccess);
+      SendMessageResponse response = makeServiceRequest(String.format(MESSAGE_PATH, bundle.getDestination()), "PUT", new JsonRequestBody(bundle),
+                                                        unidentifiedAccess, SendMessageResponse.class);
 
-      if (responseText == null) return new SendMessageResponse(false);
-      else                      return JsonUtil.fromJson(responseText, SendMessageResponse.class);
+      if (response == null) return new SendMessageResponse(false);
+      else                  return response;
     } catch (NotFoundException nfe) {
       throw new UnregisteredUserException(bundle.getDestination(), nfe);
     }
   }
 
+  public ListenableFuture<SendMessageResponse> sendMessageAsync(final OutgoingPushMessageList bundle, Optional<UnidentifiedAccess> unidentifiedAccess) {
+    return makeServiceRequestAsync(String.format(MESSAGE_PATH, bundle.getDestination()), "PUT", new JsonRequestBody(bundle), unidentifiedAccess,
+                                   SendMessageResponse.class, new ServiceResponseHandler<SendMessageResponse, SendMessageResponse>() {
+      @Override
+      public void onResponse(SendMessageResponse response, SettableFuture<SendMessageResponse> future) {
+        if (response == null) future.set(new SendMessageResponse(false));
+        else                  future.set(response);
+      }
+
+      @Override
+      public IOException onFailure(IOException exception) {
+        if (exception instanceof NotFoundException) return new UnregisteredUserException(bundle.getDestination(), exception);
+        else                                        return exception;
+      }
+    });
+  }
+
   public List<SignalServiceEnvelopeEntity> getMessages() throws IOException {
-    String responseText = makeServiceRequest(String.format(MESSAGE_PATH, ""), "GET", null);
-    return JsonUtil.fromJson(responseText, SignalServiceEnvelopeEntityList.class).getMessages();
+    return makeServiceRequest(String.format(MESSAGE_PATH, ""), "GET", null, Optional.<UnidentifiedAccess>absent(),
+                              SignalServiceEnvelopeEntityList.class).getMessages();
+  }
+
+  /**
+   * Fetch a page of queued messages, handing each entity to the listener as soon as it has
+   * been parsed off the wire rather than after the whole page has been read.
+   *
+   * @return true if the server has more messages queued beyond this page.
+   */
+  public boolean getMessages(MessageEntityListener listener) throws IOException {
+    Response response = getServiceConnection(String.format(MESSAGE_PATH, ""), "GET", null, Optional.<UnidentifiedAccess>absent());
+
+    try {
+      checkServiceResponse(response);
+
+      JsonParser parser = JsonUtil.createParser(response.body().byteStream());
+      boolean    more   = false;
+
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException(parser, "Expected a message list");
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        parser.nextToken();
+
+        if ("messages".equals(field) && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            listener.onMessage(JsonUtil.fromJson(parser, SignalServiceEnvelopeEntity.class));
+          }
+        } else if ("more".equals(field)) {
+          more = parser.getValueAsBoolean();
+        } else {
+          parser.skipChildren();
+        }
+      }
+
+      return more;
+    } catch (JsonProcessingException e) {
+      throw e;
+    } catch (NonSuccessfulResponseCodeException | PushNetworkException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    } finally {
+      response.close();
+    }
+  }
+
+  public ListenableFuture<List<SignalServiceEnvelopeEntity>> getMessagesAsync() {
+    return makeServiceRequestAsync(String.format(MESSAGE_PATH, ""), "GET", null, Optional.<UnidentifiedAccess>absent(),
+                                   SignalServiceEnvelopeEntityList.class, new ServiceResponseHandler<SignalServiceEnvelopeEntityList, List<SignalServiceEnvelopeEntity>>() {
+      @Override
+      public void onResponse(SignalServiceEnvelopeEntityList response, SettableFuture<List<SignalServiceEnvelopeEntity>> future) {
+        future.set(response.getMessages());
+      }
+    });
   }
 
   public void acknowledgeMessage(String sender, long timestamp) throws IOException {
@@ -232,6 +350,14 @@ public class PushServiceSocket {
     makeServiceRequest(String.format(UUID_ACK_MESSAGE_PATH, uuid), "DELETE", null);
   }
 
+  public ListenableFuture<Void> acknowledgeMessageAsync(String sender, long timestamp) {
+    return makeServiceRequestAsync(String.format(SENDER_ACK_MESSAGE_PATH, sender, timestamp), "DELETE", null, Optional.<UnidentifiedAccess>absent(), Void.class, new EmptyResponseHandler());
+  }
+
+  public ListenableFuture<Void> acknowledgeMessageAsync(String uuid) {
+    return makeServiceRequestAsync(String.format(UUID_ACK_MESSAGE_PATH, uuid), "DELETE", null, Optional.<UnidentifiedAccess>absent(), Void.class, new EmptyResponseHandler());
+  }
+
   public void registerPreKeys(IdentityKey identityKey,
                               SignedPreKeyRecord signedPreKey,
                               List<PreKeyRecord> records)
@@ -267,48 +393,30 @@ public class PushServiceSocket {
       throws IOException
   {
     try {
-      String deviceId = String.valueOf(deviceIdInteger);
-
-      if (deviceId.equals("1"))
-        deviceId = "*";
-
-      String path = String.format(PREKEY_DEVICE_PATH, destination.getNumber(), deviceId);
+      PreKeyResponse response = makeServiceRequest(getPreKeysPath(destination, deviceIdInteger), "GET", null, unidentifiedAccess, PreKeyResponse.class);
+      return parsePreKeyBundles(response);
+    } catch (NotFoundException nfe) {
+      throw new UnregisteredUserException(destination.getNumber(), nfe);
+    }
+  }
 
-      if (destination.getRelay().isPresent()) {
-        path = path + "?relay=" + destination.getRelay().get();
+  public ListenableFuture<List<PreKeyBundle>> getPreKeysAsync(final SignalServiceAddress destination,
+                                                              Optional<UnidentifiedAccess> unidentifiedAccess,
+                                                              int deviceIdInteger)
+  {
+    return makeServiceRequestAsync(getPreKeysPath(destination, deviceIdInteger), "GET", null, unidentifiedAccess,
+                                   PreKeyResponse.class, new ServiceResponseHandler<PreKeyResponse, List<PreKeyBundle>>() {
+      @Override
+      public void onResponse(PreKeyResponse response, SettableFuture<List<PreKeyBundle>> future) {
+        future.set(parsePreKeyBundles(response));
       }
 
-      String             responseText = makeServiceRequest(path, "GET", null, unidentifiedAccess);
-      PreKeyResponse     response     = JsonUtil.fromJson(responseText, PreKeyResponse.class);
-      List<PreKeyBundle> bundles      = new LinkedList<>();
-
-      for (PreKeyResponseItem device : response.getDevices()) {
-        ECPublicKey preKey                = null;
-        ECPublicKey signedPreKey          = null;
-        byte[]      signedPreKeySignature = null;
-        int         preKeyId              = -1;
-        int         signedPreKeyId        = -1;
-
-        if (device.getSignedPreKey() != null) {
-          signedPreKey          = device.getSignedPreKey().getPublicKey();
-          signedPreKeyId        = device.getSignedPreKey().getKeyId();
-          signedPreKeySignature = device.getSignedPreKey().getSignature();
-        }
-
-        if (device.getPreKey() != null) {
-          preKeyId = device.getPreKey().getKeyId();
-          preKey   = device.getPreKey().getPublicKey();
-        }
-
-        bundles.add(new PreKeyBundle(device.getRegistrationId(), device.getDeviceId(), preKeyId,
-                                     preKey, signedPreKeyId, signedPreKey, signedPreKeySignature,
-                                     response.getIdentityKey()));
+      @Override
+      public IOException onFailure(IOException exception) {
+        if (exception instanceof NotFoundException) return new UnregisteredUserException(destination.getNumber(), exception);
+        else                                        return exception;
       }
-
-      return bundles;
-    } catch (NotFoundException nfe) {
-      throw new UnregisteredUserException(destination.getNumber(), nfe);
-    }
+    });
   }
 
   public PreKeyBundle getPreKey(SignalServiceAddress destination, int deviceId) throws IOException {
@@ -384,6 +492,34 @@ public class PushServiceSocket {
     return new Pair<>(attachmentKey.getId(), digest);
   }
 
+  public ListenableFuture<Pair<Long, byte[]>> sendAttachmentAsync(final PushAttachmentData attachment) {
+    return makeServiceRequestAsync(String.format(ATTACHMENT_PATH, ""), "GET", null, Optional.<UnidentifiedAccess>absent(),
+                                   AttachmentDescriptor.class, new ServiceResponseHandler<AttachmentDescriptor, Pair<Long, byte[]>>() {
+      @Override
+      public void onResponse(AttachmentDescriptor attachmentKey, SettableFuture<Pair<Long, byte[]>> future) throws IOException {
+        if (attachmentKey == null || attachmentKey.getLocation() == null) {
+          throw new IOException("Server failed to allocate an attachment key!");
+        }
+
+        Log.w(TAG, "Got attachment content location: " + attachmentKey.getLocation());
+
+        uploadAttachmentAsync("PUT", attachmentKey.getId(), attachmentKey.getLocation(), attachment.getData(), attachment.getDataSize(),
+                              attachment.getOutputStreamFactory(), attachment.getListener(), future);
+      }
+
+      @Override
+      public IOException onFailure(IOException exception) {
+        try {
+          attachment.getData().close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+
+        return exception;
+      }
+    });
+  }
+
   public void retrieveAttachment(long attachmentId, File destination, int maxSizeBytes, ProgressListener listener) throws IOException {
     String               path       = String.format(ATTACHMENT_PATH, String.valueOf(attachmentId));
     String               response   = makeServiceRequest(path, "GET", null);
@@ -393,18 +529,55 @@ public class PushServiceSocket {
     downloadAttachment(descriptor.getLocation(), destination, maxSizeBytes, listener);
   }
 
+  public void retrieveAttachment(long attachmentId, OutputStream destination, int maxSizeBytes, ProgressListener listener) throws IOException {
+    String               path       = String.format(ATTACHMENT_PATH, String.valueOf(attachmentId));
+    String               response   = makeServiceRequest(path, "GET", null);
+    AttachmentDescriptor descriptor = JsonUtil.fromJson(response, AttachmentDescriptor.class);
+
+    Log.w(TAG, "Attachment: " + attachmentId + " is at: " + descriptor.getLocation());
+    downloadAttachment(descriptor.getLocation(), destination, maxSizeBytes, listener);
+  }
+
+  public ListenableFuture<Void> retrieveAttachmentAsync(final long attachmentId, final OutputStream destination, final int maxSizeBytes, final ProgressListener listener) {
+    String path = String.format(ATTACHMENT_PATH, String.valueOf(attachmentId));
+
+    return makeServiceRequestAsync(path, "GET", null, Optional.<UnidentifiedAccess>absent(),
+                                   AttachmentDescriptor.class, new ServiceResponseHandler<AttachmentDescriptor, Void>() {
+      @Override
+      public void onResponse(AttachmentDescriptor descriptor, SettableFuture<Void> future) {
+        Log.w(TAG, "Attachment: " + attachmentId + " is at: " + descriptor.getLocation());
+        downloadAttachmentAsync(descriptor.getLocation(), destination, maxSizeBytes, listener, future);
+      }
+    });
+  }
+
   public SignalServiceProfile retrieveProfile(SignalServiceAddress target, Optional<UnidentifiedAccess> unidentifiedAccess)
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
     try {
-      String response = makeServiceRequest(String.format(PROFILE_PATH, target.getNumber()), "GET", null, unidentifiedAccess);
-      return JsonUtil.fromJson(response, SignalServiceProfile.class);
+      return makeServiceRequest(String.format(PROFILE_PATH, target.getNumber()), "GET", null, unidentifiedAccess, SignalServiceProfile.class);
     } catch (IOException e) {
       Log.w(TAG, e);
       throw new NonSuccessfulResponseCodeException("Unable to parse entity");
     }
   }
 
+  public ListenableFuture<SignalServiceProfile> retrieveProfileAsync(SignalServiceAddress target, Optional<UnidentifiedAccess> unidentifiedAccess) {
+    return makeServiceRequestAsync(String.format(PROFILE_PATH, target.getNumber()), "GET", null, unidentifiedAccess,
+                                   SignalServiceProfile.class, new ServiceResponseHandler<SignalServiceProfile, SignalServiceProfile>() {
+      @Override
+      public void onResponse(SignalServiceProfile response, SettableFuture<SignalServiceProfile> future) {
+        future.set(response);
+      }
+
+      @Override
+      public IOException onFailure(IOException exception) {
+        Log.w(TAG, exception);
+        return new NonSuccessfulResponseCodeException("Unable to parse entity");
+      }
+    });
+  }
+
   public void retrieveProfileAvatar(String path, File destination, int maxSizeBytes)
     throws NonSuccessfulResponseCodeException, PushNetworkException
   {
@@ -440,13 +613,24 @@ public class PushServiceSocket {
 
   public List<ContactTokenDetails> retrieveDirectory(Set<String> contactTokens)
       throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    return retrieveDirectory(new LinkedList<>(contactTokens));
+  }
+
+  public List<ContactTokenDetails> retrieveDirectory(List<String> contactTokens)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
   {
     try {
-      ContactTokenList        contactTokenList = new ContactTokenList(new LinkedList<>(contactTokens));
-      String                  response         = makeServiceRequest(DIRECTORY_TOKENS_PATH, "PUT", JsonUtil.toJson(contactTokenList));
-      ContactTokenDetailsList activeTokens     = JsonUtil.fromJson(response, ContactTokenDetailsList.class);
+      ContactTokenDetailsList activeTokens = makeServiceRequest(DIRECTORY_TOKENS_PATH, "PUT", new JsonRequestBody(new ContactTokenList(contactTokens)),
+                                                                Optional.<UnidentifiedAccess>absent(), ContactTokenDetailsList.class);
+
+      if (activeTokens == null || activeTokens.getContacts() == null) {
+        return new LinkedList<>();
+      }
 
       return activeTokens.getContacts();
+    } catch (NonSuccessfulResponseCodeException | PushNetworkException e) {
+      throw e;
     } catch (IOException e) {
       Log.w(TAG, e);
       throw new NonSuccessfulResponseCodeException("Unable to parse entity");
@@ -468,10 +652,28 @@ public class PushServiceSocket {
     return Credentials.basic(token.getUsername(), token.getPassword());
   }
 
+  public int getContactDiscoveryEndpointCount() {
+    return contactDiscoveryClients.length;
+  }
+
+  public String getContactDiscoveryEndpointUrl(int endpoint) {
+    return contactDiscoveryClients[endpoint].getUrl();
+  }
+
   public Pair<RemoteAttestationResponse, List<String>> getContactDiscoveryRemoteAttestation(String authorization, RemoteAttestationRequest request, String mrenclave)
       throws IOException
   {
-    Response     response   = makeContactDiscoveryRequest(authorization, new LinkedList<String>(), "/v1/attestation/" + mrenclave, "PUT", JsonUtil.toJson(request));
+    return getContactDiscoveryRemoteAttestation(random.nextInt(contactDiscoveryClients.length), authorization, request, mrenclave);
+  }
+
+  /**
+   * Attest against a specific contact discovery endpoint, so that the returned cookies
+   * can be used for discovery requests made against that same endpoint.
+   */
+  public Pair<RemoteAttestationResponse, List<String>> getContactDiscoveryRemoteAttestation(int endpoint, String authorization, RemoteAttestationRequest request, String mrenclave)
+      throws IOException
+  {
+    Response     response   = makeContactDiscoveryRequest(contactDiscoveryClients[endpoint], authorization, new LinkedList<String>(), "/v1/attestation/" + mrenclave, "PUT", JsonUtil.toJson(request));
     ResponseBody body       = response.body();
     List<String> rawCookies = response.headers("Set-Cookie");
     List<String> cookies    = new LinkedList<>();
@@ -490,7 +692,13 @@ public class PushServiceSocket {
   public DiscoveryResponse getContactDiscoveryRegisteredUsers(String authorizationToken, DiscoveryRequest request, List<String> cookies, String mrenclave)
       throws IOException
   {
-    ResponseBody body = makeContactDiscoveryRequest(authorizationToken, cookies, "/v1/discovery/" + mrenclave, "PUT", JsonUtil.toJson(request)).body();
+    return getContactDiscoveryRegisteredUsers(random.nextInt(contactDiscoveryClients.length), authorizationToken, request, cookies, mrenclave);
+  }
+
+  public DiscoveryResponse getContactDiscoveryRegisteredUsers(int endpoint, String authorizationToken, DiscoveryRequest request, List<String> cookies, String mrenclave)
+      throws IOException
+  {
+    ResponseBody body = makeContactDiscoveryRequest(contactDiscoveryClients[endpoint], authorizationToken, cookies, "/v1/discovery/" + mrenclave, "PUT", JsonUtil.toJson(request)).body();
 
     if (body != null) {
       return JsonUtil.fromJson(body.string(), DiscoveryResponse.class);
@@ -528,8 +736,9 @@ public class PushServiceSocket {
     return JsonUtil.fromJson(response, TurnServerInfo.class);
   }
 
-  public void setSoTimeoutMillis(long soTimeoutMillis) {
+  public synchronized void setSoTimeoutMillis(long soTimeoutMillis) {
     this.soTimeoutMillis = soTimeoutMillis;
+    createClients();
   }
 
   public void cancelInFlightRequests() {
@@ -545,33 +754,95 @@ public class PushServiceSocket {
   private void downloadAttachment(String url, File localDestination, int maxSizeBytes, ProgressListener listener)
       throws IOException
   {
-    URL               downloadUrl = new URL(url);
-    HttpURLConnection connection  = (HttpURLConnection) downloadUrl.openConnection();
-    connection.setRequestProperty("Content-Type", "application/octet-stream");
-    connection.setRequestMethod("GET");
-    connection.setDoInput(true);
+    attachmentDownloader.download(attachmentClient, url, localDestination, maxSizeBytes, listener);
+    Log.w(TAG, "Downloaded: " + url + " to: " + localDestination.getAbsolutePath());
+  }
+
+  private void downloadAttachment(String url, OutputStream output, int maxSizeBytes, ProgressListener listener)
+      throws IOException
+  {
+    Call call = attachmentClient.newCall(new Request.Builder().url(url).get().build());
+
+    synchronized (connections) {
+      connections.add(call);
+    }
 
     try {
-      if (connection.getResponseCode() != 200) {
-        throw new NonSuccessfulResponseCodeException("Bad response: " + connection.getResponseCode());
+      readAttachmentResponse(call.execute(), output, maxSizeBytes, listener);
+    } catch (NonSuccessfulResponseCodeException | PushNetworkException e) {
+      throw e;
+    } catch (IOException ioe) {
+      throw new PushNetworkException(ioe);
+    } finally {
+      synchronized (connections) {
+        connections.remove(call);
       }
+    }
+  }
 
-      OutputStream output        = new FileOutputStream(localDestination);
-      InputStream  input         = connection.getInputStream();
-      byte[]       buffer        = new byte[32768];
-      int          contentLength = connection.getContentLength();
-      int         read,totalRead = 0;
+  /**
+   * The response body is read on {@link #attachmentExecutor} rather than on the dispatcher
+   * thread, so a slow download doesn't hold one of the dispatcher's per-host slots.
+   */
+  private void downloadAttachmentAsync(String url, final OutputStream output, final int maxSizeBytes,
+                                       final ProgressListener listener, final SettableFuture<Void> future)
+  {
+    enqueue(attachmentClient.newCall(new Request.Builder().url(url).get().build()), new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        future.setException(new PushNetworkException(e));
+      }
+
+      @Override
+      public void onResponse(Call call, final Response response) {
+        try {
+          attachmentExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                readAttachmentResponse(response, output, maxSizeBytes, listener);
+                future.set(null);
+              } catch (NonSuccessfulResponseCodeException | PushNetworkException e) {
+                future.setException(e);
+              } catch (IOException | RuntimeException e) {
+                future.setException(new PushNetworkException(e));
+              }
+            }
+          });
+        } catch (RuntimeException e) {
+          response.close();
+          future.setException(new PushNetworkException(e));
+        }
+      }
+    });
+  }
+
+  private void readAttachmentResponse(Response response, OutputStream output, int maxSizeBytes, ProgressListener listener)
+      throws IOException
+  {
+    try {
+      if (response.code() != 200) {
+        throw new NonSuccessfulResponseCodeException("Bad response: " + response.code());
+      }
+
+      ResponseBody body = response.body();
+
+      if (body == null) throw new PushNetworkException("No response body!");
+
+      InputStream input         = body.byteStream();
+      byte[]      buffer        = new byte[32768];
+      long        contentLength = body.contentLength();
+      long        read, totalRead = 0;
 
       if (contentLength > maxSizeBytes) {
         throw new NonSuccessfulResponseCodeException("File exceeds maximum size.");
       }
 
       while ((read = input.read(buffer)) != -1) {
-        output.write(buffer, 0, read);
+        output.write(buffer, 0, (int)read);
         totalRead += read;
 
         if (totalRead > maxSizeBytes) {
-          localDestination.delete();
           throw new NonSuccessfulResponseCodeException("File exceeds maximum size.");
         }
 
@@ -579,13 +850,8 @@ public class PushServiceSocket {
           listener.onAttachmentProgress(contentLength, totalRead);
         }
       }
-
-      output.close();
-      Log.w(TAG, "Downloaded: " + url + " to: " + localDestination.getAbsolutePath());
-    } catch (IOException ioe) {
-      throw new PushNetworkException(ioe);
     } finally {
-      connection.disconnect();
+      response.close();
     }
   }
 
@@ -593,46 +859,83 @@ public class PushServiceSocket {
                                   long dataSize, OutputStreamFactory outputStreamFactory, ProgressListener listener)
     throws IOException
   {
-    URL                uploadUrl  = new URL(url);
-    HttpsURLConnection connection = (HttpsURLConnection) uploadUrl.openConnection();
-    connection.setDoOutput(true);
+    DigestingRequestBody requestBody = createAttachmentRequestBody(data, dataSize, outputStreamFactory, listener);
+    Call                 call        = attachmentClient.newCall(new Request.Builder().url(url)
+                                                                                     .method(method, requestBody)
+                                                                                     .build());
 
-    if (dataSize > 0) {
-      connection.setFixedLengthStreamingMode(Util.toIntExact(dataSize));
-    } else {
-      connection.setChunkedStreamingMode(0);
+    synchronized (connections) {
+      connections.add(call);
     }
 
-    connection.setRequestMethod(method);
-    connection.setRequestProperty("Content-Type", "application/octet-stream");
-    connection.setRequestProperty("Connection", "close");
-    connection.connect();
-
     try {
-      DigestingOutputStream out    = outputStreamFactory.createFor(connection.getOutputStream());
-      byte[]                buffer = new byte[32768];
-      int            read, written = 0;
-
-      while ((read = data.read(buffer)) != -1) {
-        out.write(buffer, 0, read);
-        written += read;
+      Response response;
 
-        if (listener != null) {
-          listener.onAttachmentProgress(dataSize, written);
-        }
+      try {
+        response = call.execute();
+      } catch (IOException e) {
+        throw new PushNetworkException(e);
       }
 
-      out.flush();
+      checkAttachmentUploadResponse(response);
+
+      return requestBody.getTransmittedDigest();
+    } finally {
       data.close();
-      out.close();
 
-      if (connection.getResponseCode() != 200) {
-        throw new IOException("Bad response: " + connection.getResponseCode() + " " + connection.getResponseMessage());
+      synchronized (connections) {
+        connections.remove(call);
+      }
+    }
+  }
+
+  private void uploadAttachmentAsync(String method, final long attachmentId, String url, final InputStream data, long dataSize,
+                                     OutputStreamFactory outputStreamFactory, ProgressListener listener,
+                                     final SettableFuture<Pair<Long, byte[]>> future)
+  {
+    final DigestingRequestBody requestBody = createAttachmentRequestBody(data, dataSize, outputStreamFactory, listener);
+    final Call                 call        = attachmentClient.newCall(new Request.Builder().url(url)
+                                                                                           .method(method, requestBody)
+                                                                                           .build());
+
+    enqueue(call, new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        closeQuietly(data);
+        future.setException(new PushNetworkException(e));
       }
 
-      return out.getTransmittedDigest();
+      @Override
+      public void onResponse(Call call, Response response) {
+        closeQuietly(data);
+
+        try {
+          checkAttachmentUploadResponse(response);
+          future.set(new Pair<>(attachmentId, requestBody.getTransmittedDigest()));
+        } catch (NonSuccessfulResponseCodeException e) {
+          future.setException(e);
+        } catch (RuntimeException e) {
+          future.setException(new PushNetworkException(e));
+        }
+      }
+    });
+  }
+
+  private DigestingRequestBody createAttachmentRequestBody(InputStream data, long dataSize,
+                                                           OutputStreamFactory outputStreamFactory,
+                                                           ProgressListener listener)
+  {
+    return new DigestingRequestBody(data, outputStreamFactory, "application/octet-stream",
+                                    dataSize > 0 ? dataSize : -1, listener);
+  }
+
+  private void checkAttachmentUploadResponse(Response response) throws NonSuccessfulResponseCodeException {
+    try {
+      if (response.code() != 200) {
+        throw new NonSuccessfulResponseCodeException("Bad response: " + response.code() + " " + response.message());
+      }
     } finally {
-      connection.disconnect();
+      response.close();
     }
   }
 
@@ -640,12 +943,7 @@ public class PushServiceSocket {
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
     ConnectionHolder connectionHolder = getRandom(cdnClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectionSpecs(Arrays.asList(ConnectionSpec.MODERN_TLS, ConnectionSpec.CLEARTEXT))
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient     okHttpClient     = connectionHolder.getClient();
 
     Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + "/" + path).get();
 
@@ -659,39 +957,52 @@ public class PushServiceSocket {
       connections.add(call);
     }
 
-    Response response;
-
     try {
-      response = call.execute();
+      Response response;
+
+      try {
+        response = call.execute();
+      } catch (IOException e) {
+        throw new PushNetworkException(e);
+      }
+
+      try {
+        if (!response.isSuccessful()) {
+          throw new NonSuccessfulResponseCodeException("Response: " + response);
+        }
 
-      if (response.isSuccessful()) {
         ResponseBody body = response.body();
 
         if (body == null)                        throw new PushNetworkException("No response body!");
         if (body.contentLength() > maxSizeBytes) throw new PushNetworkException("Response exceeds max size!");
 
-        InputStream  in     = body.byteStream();
-        OutputStream out    = new FileOutputStream(destination);
-        byte[]       buffer = new byte[32768];
+        OutputStream out = new FileOutputStream(destination);
 
-        int read, totalRead = 0;
+        try {
+          InputStream in     = body.byteStream();
+          byte[]      buffer = new byte[32768];
 
-        while ((read = in.read(buffer, 0, buffer.length)) != -1) {
-          out.write(buffer, 0, read);
-          if ((totalRead += read) > maxSizeBytes) throw new PushNetworkException("Response exceeded max size!");
-        }
+          int read, totalRead = 0;
 
-        return;
+          while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+            if ((totalRead += read) > maxSizeBytes) throw new PushNetworkException("Response exceeded max size!");
+          }
+        } finally {
+          out.close();
+        }
+      } catch (PushNetworkException | NonSuccessfulResponseCodeException e) {
+        throw e;
+      } catch (IOException e) {
+        throw new PushNetworkException(e);
+      } finally {
+        response.close();
       }
-    } catch (IOException e) {
-      throw new PushNetworkException(e);
     } finally {
       synchronized (connections) {
         connections.remove(call);
       }
     }
-
-    throw new NonSuccessfulResponseCodeException("Response: " + response);
   }
 
   private byte[] uploadToCdn(String acl, String key, String policy, String algorithm,
@@ -701,11 +1012,7 @@ public class PushServiceSocket {
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
     ConnectionHolder connectionHolder = getRandom(cdnClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient     okHttpClient     = connectionHolder.getClient();
 
     DigestingRequestBody file = new DigestingRequestBody(data, outputStreamFactory, contentType, length);
 
@@ -743,8 +1050,12 @@ public class PushServiceSocket {
         throw new PushNetworkException(e);
       }
 
-      if (response.isSuccessful()) return file.getTransmittedDigest();
-      else                         throw new NonSuccessfulResponseCodeException("Response: " + response);
+      try {
+        if (response.isSuccessful()) return file.getTransmittedDigest();
+        else                         throw new NonSuccessfulResponseCodeException("Response: " + response);
+      } finally {
+        response.close();
+      }
     } finally {
       synchronized (connections) {
         connections.remove(call);
@@ -761,7 +1072,7 @@ public class PushServiceSocket {
   private String makeServiceRequest(String urlFragment, String method, String body, Optional<UnidentifiedAccess> unidentifiedAccessKey)
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
-    Response response = getServiceConnection(urlFragment, method, body, unidentifiedAccessKey);
+    Response response = getServiceConnection(urlFragment, method, createJsonBody(body), unidentifiedAccessKey);
 
     int    responseCode;
     String responseMessage;
@@ -775,6 +1086,100 @@ public class PushServiceSocket {
       throw new PushNetworkException(ioe);
     }
 
+    return validateServiceResponse(responseCode, responseMessage, responseBody);
+  }
+
+  /**
+   * Like {@link #makeServiceRequest(String, String, String, Optional)}, but streams the request
+   * entity into the connection and parses the response entity directly from it, so neither is
+   * ever materialized as a String.  Returns null for an empty successful response.
+   */
+  private <T> T makeServiceRequest(String urlFragment, String method, RequestBody body,
+                                   Optional<UnidentifiedAccess> unidentifiedAccessKey, Class<T> responseType)
+      throws IOException
+  {
+    return readServiceResponse(getServiceConnection(urlFragment, method, body, unidentifiedAccessKey), responseType);
+  }
+
+  /**
+   * Enqueue a request against the service without blocking the caller.  The response is
+   * mapped to exceptions exactly as {@link #makeServiceRequest(String, String, String, Optional)}
+   * does, and successful entities are handed to the handler on an OkHttp dispatcher thread.
+   */
+  private <R, T> ListenableFuture<T> makeServiceRequestAsync(String urlFragment, String method, RequestBody body,
+                                                             Optional<UnidentifiedAccess> unidentifiedAccessKey,
+                                                             final Class<R> responseType,
+                                                             final ServiceResponseHandler<R, T> handler)
+  {
+    final SettableFuture<T> future = new SettableFuture<>();
+
+    enqueue(createServiceCall(urlFragment, method, body, unidentifiedAccessKey), new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        future.setException(handler.onFailure(new PushNetworkException(e)));
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) {
+        try {
+          handler.onResponse(readServiceResponse(response, responseType), future);
+        } catch (IOException e) {
+          future.setException(handler.onFailure(e));
+        } catch (RuntimeException e) {
+          future.setException(handler.onFailure(new PushNetworkException(e)));
+        }
+      }
+    });
+
+    return future;
+  }
+
+  private <T> T readServiceResponse(Response response, Class<T> responseType) throws IOException {
+    try {
+      checkServiceResponse(response);
+
+      if (responseType == Void.class) {
+        return null;
+      }
+
+      try {
+        BufferedSource source = response.body().source();
+
+        if (source.exhausted()) return null;
+        else                    return JsonUtil.fromJson(source.inputStream(), responseType);
+      } catch (JsonProcessingException e) {
+        throw e;
+      } catch (IOException ioe) {
+        throw new PushNetworkException(ioe);
+      }
+    } finally {
+      response.close();
+    }
+  }
+
+  private void checkServiceResponse(Response response)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    int    responseCode    = response.code();
+    String responseMessage = response.message();
+    String errorBody       = null;
+
+    if (responseCode != 200 && responseCode != 204) {
+      try {
+        errorBody = response.body().string();
+      } catch (IOException ioe) {
+        throw new PushNetworkException(ioe);
+      }
+    }
+
+    validateServiceResponse(responseCode, responseMessage, errorBody);
+  }
+
+  private String validateServiceResponse(int responseCode, String responseMessage, String responseBody)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    SignalServiceMetricsProvider.getProvider().increment(SignalServiceMetrics.HTTP_STATUS_PREFIX + responseCode);
+
     switch (responseCode) {
       case 413:
         throw new RateLimitException("Rate limit exceeded: " + responseCode);
@@ -845,44 +1250,11 @@ public class PushServiceSocket {
     return responseBody;
   }
 
-  private Response getServiceConnection(String urlFragment, String method, String body, Optional<UnidentifiedAccess> unidentifiedAccess)
+  private Response getServiceConnection(String urlFragment, String method, RequestBody body, Optional<UnidentifiedAccess> unidentifiedAccess)
       throws PushNetworkException
   {
     try {
-      ConnectionHolder connectionHolder = getRandom(serviceClients, random);
-      OkHttpClient     okHttpClient     = connectionHolder.getClient().newBuilder()
-                                                          .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                          .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                          .connectionSpecs(Arrays.asList(ConnectionSpec.MODERN_TLS, ConnectionSpec.CLEARTEXT)) // XXXX
-                                                          .build();
-
-      Log.w(TAG, "Push service URL: " + connectionHolder.getUrl());
-      Log.w(TAG, "Opening URL: " + String.format("%s%s", connectionHolder.getUrl(), urlFragment));
-
-      Request.Builder request = new Request.Builder();
-      request.url(String.format("%s%s", connectionHolder.getUrl(), urlFragment));
-
-      if (body != null) {
-        request.method(method, RequestBody.create(MediaType.parse("application/json"), body));
-      } else {
-        request.method(method, null);
-      }
-
-      if (unidentifiedAccess.isPresent()) {
-        request.addHeader("Unidentified-Access-Key", Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
-      } else if (credentialsProvider.getPassword() != null) {
-        request.addHeader("Authorization", getAuthorizationHeader(credentialsProvider));
-      }
-
-      if (userAgent != null) {
-        request.addHeader("X-Signal-Agent", userAgent);
-      }
-
-      if (connectionHolder.getHostHeader().isPresent()) {
-        request.addHeader("Host", connectionHolder.getHostHeader().get());
-      }
-
-      Call call = okHttpClient.newCall(request.build());
+      Call call = createServiceCall(urlFragment, method, body, unidentifiedAccess);
 
       synchronized (connections) {
         connections.add(call);
@@ -900,20 +1272,73 @@ public class PushServiceSocket {
     }
   }
 
-  private Response makeContactDiscoveryRequest(String authorization, List<String> cookies, String path, String method, String body)
+  private Call createServiceCall(String urlFragment, String method, RequestBody body, Optional<UnidentifiedAccess> unidentifiedAccess) {
+    ConnectionHolder connectionHolder = getRandom(serviceClients, random);
+    OkHttpClient     okHttpClient     = connectionHolder.getClient();
+
+    Log.w(TAG, "Push service URL: " + connectionHolder.getUrl());
+    Log.w(TAG, "Opening URL: " + String.format("%s%s", connectionHolder.getUrl(), urlFragment));
+
+    Request.Builder request = new Request.Builder();
+    request.url(String.format("%s%s", connectionHolder.getUrl(), urlFragment));
+    request.method(method, body);
+
+    if (unidentifiedAccess.isPresent()) {
+      request.addHeader("Unidentified-Access-Key", Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+    } else if (credentialsProvider.getPassword() != null) {
+      request.addHeader("Authorization", getAuthorizationHeader(credentialsProvider));
+    }
+
+    if (userAgent != null) {
+      request.addHeader("X-Signal-Agent", userAgent);
+    }
+
+    if (connectionHolder.getHostHeader().isPresent()) {
+      request.addHeader("Host", connectionHolder.getHostHeader().get());
+    }
+
+    return okHttpClient.newCall(request.build());
+  }
+
+  /**
+   * Enqueue a call on the shared dispatcher, tracking it in {@link #connections} until it
+   * completes so that {@link #cancelInFlightRequests()} covers asynchronous requests too.
+   */
+  private void enqueue(final Call call, final Callback callback) {
+    synchronized (connections) {
+      connections.add(call);
+    }
+
+    call.enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        synchronized (connections) {
+          connections.remove(call);
+        }
+
+        callback.onFailure(call, e);
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) throws IOException {
+        synchronized (connections) {
+          connections.remove(call);
+        }
+
+        callback.onResponse(call, response);
+      }
+    });
+  }
+
+  private Response makeContactDiscoveryRequest(ConnectionHolder connectionHolder, String authorization, List<String> cookies, String path, String method, String body)
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
-    ConnectionHolder connectionHolder = getRandom(contactDiscoveryClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient okHttpClient = connectionHolder.getClient();
 
     Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + path);
 
     if (body != null) {
-      request.method(method, RequestBody.create(MediaType.parse("application/json"), body));
+      request.method(method, RequestBody.create(JSON_MEDIA_TYPE, body));
     } else {
       request.method(method, null);
     }
@@ -952,10 +1377,33 @@ public class PushServiceSocket {
       }
     }
 
+    response.close();
     throw new NonSuccessfulResponseCodeException("Response: " + response);
   }
 
-  private ConnectionHolder[] createConnectionHolders(SignalUrl[] urls) {
+  /**
+   * Build the long-lived clients for each endpoint.  They all share one connection
+   * pool and dispatcher, so connections (and HTTP/2 sessions) are reused across
+   * requests, and rebuilding the clients doesn't drop them.
+   */
+  private void createClients() {
+    this.serviceClients          = createConnectionHolders(signalServiceConfiguration.getSignalServiceUrls(), SERVICE_CONNECTION_SPECS);
+    this.cdnClients              = createConnectionHolders(signalServiceConfiguration.getSignalCdnUrls(), CDN_CONNECTION_SPECS);
+    this.contactDiscoveryClients = createConnectionHolders(signalServiceConfiguration.getSignalContactDiscoveryUrls(), CONTACT_DISCOVERY_CONNECTION_SPECS);
+    this.attachmentClient        = createClientBuilder().retryOnConnectionFailure(false).build();
+  }
+
+  private OkHttpClient.Builder createClientBuilder() {
+    return new OkHttpClient.Builder().connectionPool(connectionPool)
+                                     .dispatcher(dispatcher)
+                                     .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                                     .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param defaultConnectionSpecs Used for any URL that doesn't configure its own connection specs.
+   */
+  private ConnectionHolder[] createConnectionHolders(SignalUrl[] urls, List<ConnectionSpec> defaultConnectionSpecs) {
     try {
       List<ConnectionHolder> connectionHolders = new LinkedList<>();
 
@@ -965,10 +1413,10 @@ public class PushServiceSocket {
         SSLContext context = SSLContext.getInstance("TLS");
         context.init(null, trustManagers, null);
 
-        OkHttpClient client = new OkHttpClient.Builder()
-                                              .sslSocketFactory(context.getSocketFactory(), (X509TrustManager)trustManagers[0])
-                                              .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.MODERN_TLS, ConnectionSpec.COMPATIBLE_TLS)))
-                                              .build();
+        OkHttpClient client = createClientBuilder()
+                                .sslSocketFactory(context.getSocketFactory(), (X509TrustManager)trustManagers[0])
+                                .connectionSpecs(url.getConnectionSpecs().or(defaultConnectionSpecs))
+                                .build();
 
         connectionHolders.add(new ConnectionHolder(client, url.getUrl(), url.getHostHeader()));
       }
@@ -991,6 +1439,86 @@ public class PushServiceSocket {
     return connections[random.nextInt(connections.length)];
   }
 
+  private RequestBody createJsonBody(String body) {
+    if (body == null) return null;
+    else              return RequestBody.create(JSON_MEDIA_TYPE, body);
+  }
+
+  private String getPreKeysPath(SignalServiceAddress destination, int deviceIdInteger) {
+    String deviceId = String.valueOf(deviceIdInteger);
+
+    if (deviceId.equals("1"))
+      deviceId = "*";
+
+    String path = String.format(PREKEY_DEVICE_PATH, destination.getNumber(), deviceId);
+
+    if (destination.getRelay().isPresent()) {
+      path = path + "?relay=" + destination.getRelay().get();
+    }
+
+    return path;
+  }
+
+  private List<PreKeyBundle> parsePreKeyBundles(PreKeyResponse response) {
+    List<PreKeyBundle> bundles = new LinkedList<>();
+
+    for (PreKeyResponseItem device : response.getDevices()) {
+      ECPublicKey preKey                = null;
+      ECPublicKey signedPreKey          = null;
+      byte[]      signedPreKeySignature = null;
+      int         preKeyId              = -1;
+      int         signedPreKeyId        = -1;
+
+      if (device.getSignedPreKey() != null) {
+        signedPreKey          = device.getSignedPreKey().getPublicKey();
+        signedPreKeyId        = device.getSignedPreKey().getKeyId();
+        signedPreKeySignature = device.getSignedPreKey().getSignature();
+      }
+
+      if (device.getPreKey() != null) {
+        preKeyId = device.getPreKey().getKeyId();
+        preKey   = device.getPreKey().getPublicKey();
+      }
+
+      bundles.add(new PreKeyBundle(device.getRegistrationId(), device.getDeviceId(), preKeyId,
+                                   preKey, signedPreKeyId, signedPreKey, signedPreKeySignature,
+                                   response.getIdentityKey()));
+    }
+
+    return bundles;
+  }
+
+  private static void closeQuietly(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  public interface MessageEntityListener {
+    public void onMessage(SignalServiceEnvelopeEntity entity) throws IOException;
+  }
+
+  /**
+   * Receives the parsed entity of a successful asynchronous service request.  Implementations
+   * complete the future themselves, which lets them chain a follow-up request.
+   */
+  private static abstract class ServiceResponseHandler<R, T> {
+    public abstract void onResponse(R response, SettableFuture<T> future) throws IOException;
+
+    public IOException onFailure(IOException exception) {
+      return exception;
+    }
+  }
+
+  private static class EmptyResponseHandler extends ServiceResponseHandler<Void, Void> {
+    @Override
+    public void onResponse(Void response, SettableFuture<Void> future) {
+      future.set(null);
+    }
+  }
+
   private static class GcmRegistrationId {
 
     @JsonProperty
@@ -13,8 +13,23 @@ public class PushTransportDetails {
 
   private static final String TAG = PushTransportDetails.class.getSimpleName();
 
+  private static final PushTransportDetails VERSION_2 = new PushTransportDetails(2);
+  private static final PushTransportDetails VERSION_3 = new PushTransportDetails(3);
+
   private final int messageVersion;
 
+  /**
+   * @return A shared instance for the common message versions, since these hold no
+   * per-message state.
+   */
+  public static PushTransportDetails forVersion(int messageVersion) {
+    switch (messageVersion) {
+      case 2:  return VERSION_2;
+      case 3:  return VERSION_3;
+      default: return new PushTransportDetails(messageVersion);
+    }
+  }
+
   public PushTransportDetails(int messageVersion) {
     this.messageVersion = messageVersion;
   }
@@ -1,14 +1,23 @@
 package org.whispersystems.circleservice.internal.push;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 import java.util.List;
 
 public class SignalServiceEnvelopeEntityList {
 
   private List<SignalServiceEnvelopeEntity> messages;
 
+  @JsonProperty
+  private boolean more;
+
   public SignalServiceEnvelopeEntityList() {}
 
   public List<SignalServiceEnvelopeEntity> getMessages() {
     return messages;
   }
+
+  public boolean hasMore() {
+    return more;
+  }
 }
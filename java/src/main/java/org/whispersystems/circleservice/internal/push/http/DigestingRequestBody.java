@@ -2,6 +2,7 @@ package org.whispersystems.circleservice.internal.push.http;
 
 
 import org.whispersystems.circleservice.api.crypto.DigestingOutputStream;
+import org.whispersystems.circleservice.api.messages.SignalServiceAttachment.ProgressListener;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -16,17 +17,27 @@ public class DigestingRequestBody extends RequestBody {
   private final OutputStreamFactory outputStreamFactory;
   private final String              contentType;
   private final long                contentLength;
+  private final ProgressListener    progressListener;
 
   private byte[] digest;
 
   public DigestingRequestBody(InputStream inputStream,
                               OutputStreamFactory outputStreamFactory,
                               String contentType, long contentLength)
+  {
+    this(inputStream, outputStreamFactory, contentType, contentLength, null);
+  }
+
+  public DigestingRequestBody(InputStream inputStream,
+                              OutputStreamFactory outputStreamFactory,
+                              String contentType, long contentLength,
+                              ProgressListener progressListener)
   {
     this.inputStream         = inputStream;
     this.outputStreamFactory = outputStreamFactory;
     this.contentType         = contentType;
     this.contentLength       = contentLength;
+    this.progressListener    = progressListener;
   }
 
   @Override
@@ -39,10 +50,16 @@ public class DigestingRequestBody extends RequestBody {
     DigestingOutputStream outputStream = outputStreamFactory.createFor(sink.outputStream());
     byte[]                buffer       = new byte[4096];
 
-    int read;
+    long written = 0;
+    int  read;
 
     while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
       outputStream.write(buffer, 0, read);
+      written += read;
+
+      if (progressListener != null) {
+        progressListener.onAttachmentProgress(contentLength, written);
+      }
     }
 
     outputStream.flush();
@@ -0,0 +1,35 @@
+package org.whispersystems.circleservice.internal.push.http;
+
+
+import org.whispersystems.circleservice.internal.util.JsonUtil;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A request body that serializes its entity straight into the request sink,
+ * rather than through an intermediate String.
+ */
+public class JsonRequestBody extends RequestBody {
+
+  private static final MediaType CONTENT_TYPE = MediaType.parse("application/json");
+
+  private final Object entity;
+
+  public JsonRequestBody(Object entity) {
+    this.entity = entity;
+  }
+
+  @Override
+  public MediaType contentType() {
+    return CONTENT_TYPE;
+  }
+
+  @Override
+  public void writeTo(BufferedSink sink) throws IOException {
+    JsonUtil.toJson(entity, sink.outputStream());
+  }
+}
@@ -15,6 +15,8 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializerProvider;
 
 import org.whispersystems.libsignal.IdentityKey;
@@ -22,6 +24,10 @@ import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.logging.Log;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class JsonUtil {
 
@@ -29,8 +35,12 @@ public class JsonUtil {
 
   private static final ObjectMapper objectMapper = new ObjectMapper();
 
+  private static final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
   static {
     objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    objectMapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
   }
 
   public static String toJson(Object object) {
@@ -42,10 +52,63 @@ public class JsonUtil {
     }
   }
 
+  /**
+   * Serialize directly into a stream, without building an intermediate String.
+   * The stream is flushed but not closed.
+   */
+  public static void toJson(Object object, OutputStream out) throws IOException {
+    getWriter(object.getClass()).writeValue(out, object);
+  }
+
   public static <T> T fromJson(String json, Class<T> clazz)
       throws IOException
   {
-    return objectMapper.readValue(json, clazz);
+    return getReader(clazz).readValue(json);
+  }
+
+  /**
+   * Parse directly from a stream, without reading it into a String first.
+   */
+  public static <T> T fromJson(InputStream in, Class<T> clazz)
+      throws IOException
+  {
+    return getReader(clazz).readValue(in);
+  }
+
+  /**
+   * Bind the value at the parser's current token, for callers that walk a large
+   * document incrementally rather than binding all of it at once.
+   */
+  public static <T> T fromJson(JsonParser parser, Class<T> clazz)
+      throws IOException
+  {
+    return getReader(clazz).readValue(parser);
+  }
+
+  public static JsonParser createParser(InputStream in) throws IOException {
+    return objectMapper.getFactory().createParser(in);
+  }
+
+  private static ObjectReader getReader(Class<?> clazz) {
+    ObjectReader reader = readers.get(clazz);
+
+    if (reader == null) {
+      reader = objectMapper.readerFor(clazz);
+      readers.putIfAbsent(clazz, reader);
+    }
+
+    return reader;
+  }
+
+  private static ObjectWriter getWriter(Class<?> clazz) {
+    ObjectWriter writer = writers.get(clazz);
+
+    if (writer == null) {
+      writer = objectMapper.writerFor(clazz);
+      writers.putIfAbsent(clazz, writer);
+    }
+
+    return writer;
   }
   
   public static class IdentityKeySerializer extends JsonSerializer<IdentityKey> {
@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.internal.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded, access ordered map which evicts its least recently used entry.
+ *
+ * Not thread safe; callers must synchronize access themselves.
+ */
+public class LRUCache<K, V> extends LinkedHashMap<K, V> {
+
+  private final int maxSize;
+
+  public LRUCache(int maxSize) {
+    super(16, 0.75f, true);
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+    return size() > maxSize;
+  }
+}
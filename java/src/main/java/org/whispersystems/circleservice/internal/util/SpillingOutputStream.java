@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014-2018 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.circleservice.internal.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that buffers what's written to it in memory, moving it to a
+ * temporary file only once it grows past a limit.  Once closed, the contents
+ * can be read back with {@link #getInputStream()}.
+ */
+public class SpillingOutputStream extends OutputStream {
+
+  private final int  maxMemoryBytes;
+  private final File spillDirectory;
+
+  private ExposedOutputStream memory;
+  private File                spillFile;
+  private OutputStream        spillStream;
+  private boolean             closed;
+
+  public SpillingOutputStream(int maxMemoryBytes, File spillDirectory) {
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.spillDirectory = spillDirectory;
+    this.memory         = new ExposedOutputStream();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (closed) throw new IOException("Stream closed");
+
+    if (spillStream == null && memory.size() + length > maxMemoryBytes) {
+      spill();
+    }
+
+    if (spillStream != null) spillStream.write(buffer, offset, length);
+    else                     memory.write(buffer, offset, length);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (spillStream != null) spillStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+
+    if (spillStream != null) spillStream.close();
+  }
+
+  public boolean isSpilled() {
+    return spillFile != null;
+  }
+
+  /**
+   * @return An InputStream over everything that was written.  If the contents were
+   *         spilled to disk, the temporary file is deleted when the stream is closed.
+   */
+  public InputStream getInputStream() throws IOException {
+    if (!closed) throw new IllegalStateException("Stream not closed");
+
+    if (memory != null) {
+      return memory.toInputStream();
+    }
+
+    return new FileInputStream(spillFile) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          spillFile.delete();
+        }
+      }
+    };
+  }
+
+  /**
+   * Close the stream and throw away anything that was written to it.
+   */
+  public void discard() {
+    try {
+      close();
+    } catch (IOException e) {
+      // Nothing more to do
+    }
+
+    if (spillFile != null) {
+      spillFile.delete();
+    }
+
+    memory = null;
+  }
+
+  private void spill() throws IOException {
+    spillFile   = File.createTempFile("spill", ".tmp", spillDirectory);
+    spillStream = new BufferedOutputStream(new FileOutputStream(spillFile));
+
+    memory.writeTo(spillStream);
+    memory = null;
+  }
+
+  private static class ExposedOutputStream extends ByteArrayOutputStream {
+    private InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+}
@@ -10,17 +10,20 @@ import org.whispersystems.circleservice.api.util.CredentialsProvider;
 import org.whispersystems.circleservice.api.util.SleepTimer;
 import org.whispersystems.circleservice.api.websocket.ConnectivityListener;
 import org.whispersystems.circleservice.internal.util.BlacklistingTrustManager;
-import org.whispersystems.circleservice.internal.util.Util;
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
 import org.whispersystems.circleservice.internal.util.concurrent.SettableFuture;
 
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -41,13 +44,26 @@ import static org.whispersystems.circleservice.internal.websocket.WebSocketProto
 import static org.whispersystems.circleservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
 import static org.whispersystems.circleservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
 
+/**
+ * A websocket connection to the Signal Service.
+ *
+ * Incoming requests are queued on a lock-free queue and outgoing requests are tracked
+ * in a concurrent map, so reads, writes and the OkHttp callback thread never contend
+ * with each other.  Only connection lifecycle changes (connect, disconnect, open, close)
+ * are serialized, and reconnect backoff runs on a scheduler rather than blocking a
+ * callback thread.
+ */
 public class WebSocketConnection extends WebSocketListener {
 
   private static final String TAG                       = WebSocketConnection.class.getSimpleName();
   private static final int    KEEPALIVE_TIMEOUT_SECONDS = 55;
 
-  private final LinkedList<WebSocketRequestMessage>              incomingRequests = new LinkedList<>();
-  private final Map<Long, SettableFuture<Pair<Integer, String>>> outgoingRequests = new HashMap<>();
+  private final Queue<WebSocketRequestMessage>                   incomingRequests = new ConcurrentLinkedQueue<>();
+  private final Semaphore                                        incomingSignal   = new Semaphore(0);
+  private final Map<Long, SettableFuture<Pair<Integer, String>>> outgoingRequests = new ConcurrentHashMap<>();
+
+  private final Object                      lifecycleLock = new Object();
+  private final ScheduledThreadPoolExecutor reconnectScheduler;
 
   private final String                        wsUri;
   private final TrustStore                    trustStore;
@@ -56,10 +72,11 @@ public class WebSocketConnection extends WebSocketListener {
   private final ConnectivityListener          listener;
   private final SleepTimer                    sleepTimer;
 
-  private WebSocket           client;
-  private KeepAliveSender     keepAliveSender;
-  private int                 attempts;
-  private boolean             connected;
+  private volatile WebSocket       client;
+  private volatile boolean         connected;
+  private volatile boolean         closed = true;
+  private          KeepAliveSender keepAliveSender;
+  private          int             attempts;
 
   public WebSocketConnection(String httpUri,
                              TrustStore trustStore,
@@ -75,6 +92,17 @@ public class WebSocketConnection extends WebSocketListener {
     this.sleepTimer          = timer;
     this.attempts            = 0;
     this.connected           = false;
+    this.reconnectScheduler  = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "WebSocketConnection-reconnect");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    this.reconnectScheduler.setKeepAliveTime(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    this.reconnectScheduler.allowCoreThreadTimeOut(true);
 
     String uri = httpUri.replace("https://", "wss://").replace("http://", "ws://");
 
@@ -82,75 +110,98 @@ public class WebSocketConnection extends WebSocketListener {
     else                                 this.wsUri = uri + "/v1/websocket/";
   }
 
-  public synchronized void connect() {
+  public void connect() {
     Log.w(TAG, "WSC connect()...");
 
-    if (client == null) {
-      String filledUri;
+    synchronized (lifecycleLock) {
+      closed = false;
 
-      if (credentialsProvider.isPresent()) {
-        filledUri = String.format(wsUri, credentialsProvider.get().getUser(), credentialsProvider.get().getPassword());
-      } else {
-        filledUri = wsUri;
-      }
+      if (client == null) {
+        String filledUri;
 
-      Pair<SSLSocketFactory, X509TrustManager> socketFactory = createTlsSocketFactory(trustStore);
+        if (credentialsProvider.isPresent()) {
+          filledUri = String.format(wsUri, credentialsProvider.get().getUser(), credentialsProvider.get().getPassword());
+        } else {
+          filledUri = wsUri;
+        }
 
-      OkHttpClient okHttpClient = new OkHttpClient.Builder()
-                                                  .sslSocketFactory(socketFactory.first(), socketFactory.second())
-                                                  .readTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
-                                                  .connectTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
-                                                  .build();
+        Pair<SSLSocketFactory, X509TrustManager> socketFactory = createTlsSocketFactory(trustStore);
 
-      Request.Builder requestBuilder = new Request.Builder().url(filledUri);
+        OkHttpClient okHttpClient = new OkHttpClient.Builder()
+                                                    .sslSocketFactory(socketFactory.first(), socketFactory.second())
+                                                    .readTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
+                                                    .connectTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
+                                                    .build();
 
-      if (userAgent != null) {
-        requestBuilder.addHeader("X-Signal-Agent", userAgent);
-      }
+        Request.Builder requestBuilder = new Request.Builder().url(filledUri);
 
-      if (listener != null) {
-        listener.onConnecting();
-      }
+        if (userAgent != null) {
+          requestBuilder.addHeader("X-Signal-Agent", userAgent);
+        }
 
-      this.connected = false;
-      this.client    = okHttpClient.newWebSocket(requestBuilder.build(), this);
+        if (listener != null) {
+          listener.onConnecting();
+        }
+
+        this.connected = false;
+        this.client    = okHttpClient.newWebSocket(requestBuilder.build(), this);
+      }
     }
   }
 
-  public synchronized void disconnect() {
+  public void disconnect() {
     Log.w(TAG, "WSC disconnect()...");
 
-    if (client != null) {
-      client.close(1000, "OK");
-      client    = null;
-      connected = false;
-    }
+    synchronized (lifecycleLock) {
+      closed = true;
 
-    if (keepAliveSender != null) {
-      keepAliveSender.shutdown();
-      keepAliveSender = null;
+      if (client != null) {
+        client.close(1000, "OK");
+        client    = null;
+        connected = false;
+      }
+
+      if (keepAliveSender != null) {
+        keepAliveSender.shutdown();
+        keepAliveSender = null;
+      }
     }
+
+    incomingSignal.release();
   }
 
-  public synchronized WebSocketRequestMessage readRequest(long timeoutMillis)
+  public WebSocketRequestMessage readRequest(long timeoutMillis)
       throws TimeoutException, IOException
   {
-    if (client == null) {
+    if (closed) {
       throw new IOException("Connection closed!");
     }
 
     long startTime = System.currentTimeMillis();
 
-    while (client != null && incomingRequests.isEmpty() && elapsedTime(startTime) < timeoutMillis) {
-      Util.wait(this, Math.max(1, timeoutMillis - elapsedTime(startTime)));
-    }
+    while (true) {
+      boolean signaled;
+
+      try {
+        signaled = incomingSignal.tryAcquire(Math.max(0, timeoutMillis - elapsedTime(startTime)), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
 
-    if      (incomingRequests.isEmpty() && client == null) throw new IOException("Connection closed!");
-    else if (incomingRequests.isEmpty())                   throw new TimeoutException("Timeout exceeded");
-    else                                                   return incomingRequests.removeFirst();
+      if (signaled) {
+        WebSocketRequestMessage request = incomingRequests.poll();
+        if (request != null) return request;
+      }
+
+      if      (closed)                                  throw new IOException("Connection closed!");
+      else if (elapsedTime(startTime) >= timeoutMillis) throw new TimeoutException("Timeout exceeded");
+    }
   }
 
-  public synchronized Future<Pair<Integer, String>> sendRequest(WebSocketRequestMessage request) throws IOException {
+  public ListenableFuture<Pair<Integer, String>> sendRequest(WebSocketRequestMessage request) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null || !connected) throw new IOException("No connection!");
 
     WebSocketMessage message = WebSocketMessage.newBuilder()
@@ -161,14 +212,35 @@ public class WebSocketConnection extends WebSocketListener {
     SettableFuture<Pair<Integer, String>> future = new SettableFuture<>();
     outgoingRequests.put(request.getId(), future);
 
+    // onClosed() marks the connection down before failing outgoing requests, so if it's
+    // still up now, this request will be seen and failed by any close that follows.
+    if (this.client != client || !connected) {
+      outgoingRequests.remove(request.getId());
+      throw new IOException("No connection!");
+    }
+
     if (!client.send(ByteString.of(message.toByteArray()))) {
+      outgoingRequests.remove(request.getId());
       throw new IOException("Write failed!");
     }
 
     return future;
   }
 
-  public synchronized void sendResponse(WebSocketResponseMessage response) throws IOException {
+  /**
+   * Stop waiting for a response to a request, failing its future if it's still pending.
+   */
+  public void cancelRequest(long requestId) {
+    SettableFuture<Pair<Integer, String>> future = outgoingRequests.remove(requestId);
+
+    if (future != null) {
+      future.setException(new IOException("Request canceled"));
+    }
+  }
+
+  public void sendResponse(WebSocketResponseMessage response) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null) {
       throw new IOException("Connection closed!");
     }
@@ -183,8 +255,10 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
-  private synchronized void sendKeepAlive() throws IOException {
-    if (keepAliveSender != null && client != null) {
+  private void sendKeepAlive() throws IOException {
+    WebSocket client = this.client;
+
+    if (client != null) {
       byte[] message = WebSocketMessage.newBuilder()
                                        .setType(WebSocketMessage.Type.REQUEST)
                                        .setRequest(WebSocketRequestMessage.newBuilder()
@@ -201,21 +275,29 @@ public class WebSocketConnection extends WebSocketListener {
   }
 
   @Override
-  public synchronized void onOpen(WebSocket webSocket, Response response) {
-    if (client != null && keepAliveSender == null) {
+  public void onOpen(WebSocket webSocket, Response response) {
+    synchronized (lifecycleLock) {
+      if (client == null || client != webSocket || keepAliveSender != null) return;
+
       Log.w(TAG, "onConnected()");
       attempts        = 0;
       connected       = true;
       keepAliveSender = new KeepAliveSender();
       keepAliveSender.start();
-
-      if (listener != null) listener.onConnected();
     }
+
+    if (listener != null) listener.onConnected();
   }
 
   @Override
-  public synchronized void onMessage(WebSocket webSocket, ByteString payload) {
+  public void onMessage(WebSocket webSocket, ByteString payload) {
     Log.w(TAG, "WSC onMessage()");
+
+    if (webSocket != client) {
+      Log.w(TAG, "Ignoring message from a stale connection");
+      return;
+    }
+
     try {
       WebSocketMessage message = WebSocketMessage.parseFrom(payload.toByteArray());
 
@@ -223,22 +305,35 @@ public class WebSocketConnection extends WebSocketListener {
 
       if (message.getType().getNumber() == WebSocketMessage.Type.REQUEST_VALUE)  {
         incomingRequests.add(message.getRequest());
+        incomingSignal.release();
       } else if (message.getType().getNumber() == WebSocketMessage.Type.RESPONSE_VALUE) {
-        SettableFuture<Pair<Integer, String>> listener = outgoingRequests.get(message.getResponse().getId());
+        SettableFuture<Pair<Integer, String>> listener = outgoingRequests.remove(message.getResponse().getId());
         if (listener != null) listener.set(new Pair<>(message.getResponse().getStatus(),
                                                       new String(message.getResponse().getBody().toByteArray())));
       }
-
-      notifyAll();
     } catch (InvalidProtocolBufferException e) {
       Log.w(TAG, e);
     }
   }
 
   @Override
-  public synchronized void onClosed(WebSocket webSocket, int code, String reason) {
+  public void onClosed(final WebSocket webSocket, int code, String reason) {
     Log.w(TAG, "onClose()...");
-    this.connected = false;
+
+    long backoffMillis;
+
+    synchronized (lifecycleLock) {
+      if (client != null && client != webSocket) return;
+
+      this.connected = false;
+
+      if (keepAliveSender != null) {
+        keepAliveSender.shutdown();
+        keepAliveSender = null;
+      }
+
+      backoffMillis = Math.min(++attempts * 200, TimeUnit.SECONDS.toMillis(15));
+    }
 
     Iterator<Map.Entry<Long, SettableFuture<Pair<Integer, String>>>> iterator = outgoingRequests.entrySet().iterator();
 
@@ -248,29 +343,31 @@ public class WebSocketConnection extends WebSocketListener {
       iterator.remove();
     }
 
-    if (keepAliveSender != null) {
-      keepAliveSender.shutdown();
-      keepAliveSender = null;
-    }
-
     if (listener != null) {
       listener.onDisconnected();
     }
 
-    Util.wait(this, Math.min(++attempts * 200, TimeUnit.SECONDS.toMillis(15)));
-
-    if (client != null) {
-      client.close(1000, "OK");
-      client    = null;
-      connected = false;
-      connect();
-    }
+    incomingSignal.release();
+
+    reconnectScheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (lifecycleLock) {
+          if (client != null && client == webSocket) {
+            client.close(1000, "OK");
+            client    = null;
+            connected = false;
+            connect();
+          }
+        }
 
-    notifyAll();
+        incomingSignal.release();
+      }
+    }, backoffMillis, TimeUnit.MILLISECONDS);
   }
 
   @Override
-  public synchronized void onFailure(WebSocket webSocket, Throwable t, Response response) {
+  public void onFailure(WebSocket webSocket, Throwable t, Response response) {
     Log.w(TAG, "onFailure()");
     Log.w(TAG, t);
 
@@ -289,7 +386,7 @@ public class WebSocketConnection extends WebSocketListener {
   }
 
   @Override
-  public synchronized void onClosing(WebSocket webSocket, int code, String reason) {
+  public void onClosing(WebSocket webSocket, int code, String reason) {
     Log.w(TAG, "onClosing()!...");
     webSocket.close(1000, "OK");
   }
@@ -319,6 +416,8 @@ public class WebSocketConnection extends WebSocketListener {
         try {
           sleepTimer.sleep(TimeUnit.SECONDS.toMillis(KEEPALIVE_TIMEOUT_SECONDS));
 
+          if (stop.get()) break;
+
           Log.w(TAG, "Sending keep alive...");
           sendKeepAlive();
         } catch (Throwable e) {
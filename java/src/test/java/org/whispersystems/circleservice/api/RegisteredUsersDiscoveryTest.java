@@ -0,0 +1,131 @@
+package org.whispersystems.circleservice.api;
+
+
+import junit.framework.TestCase;
+
+import org.whispersystems.circleservice.internal.contacts.ContactDiscoveryClient;
+
+import java.io.IOException;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RegisteredUsersDiscoveryTest extends TestCase {
+
+  private static final long[] ADDRESS_BOOK = new long[] {14155550100L, 14155550101L, 14155550102L, 14155550103L,
+                                                         14155550104L, 14155550105L, 14155550106L, 14155550107L,
+                                                         14155550108L, 14155550109L};
+
+  public void testChunks() throws IOException {
+    StubClient        client   = new StubClient();
+    RecordingListener listener = new RecordingListener();
+
+    SignalServiceAccountManager.discoverRegisteredUsers(client, ADDRESS_BOOK, 3, 2, listener);
+
+    assertEquals(new HashSet<>(Arrays.asList("+14155550100", "+14155550102", "+14155550104", "+14155550106", "+14155550108")),
+                 listener.registered);
+    assertTrue(listener.failed.isEmpty());
+    assertEquals(10, listener.lastProcessed);
+    assertEquals(4, client.calls.get());
+  }
+
+  public void testPermanentFailureIsNotRetried() throws IOException {
+    StubClient        client   = new StubClient();
+    RecordingListener listener = new RecordingListener();
+
+    client.failures.put(3, new SignatureException("bad signature"));
+
+    SignalServiceAccountManager.discoverRegisteredUsers(client, ADDRESS_BOOK, 3, 2, listener);
+
+    assertEquals(4, client.calls.get());
+    assertEquals(Arrays.asList("+14155550103", "+14155550104", "+14155550105"), listener.failed);
+    assertEquals(4, listener.registered.size());
+    assertEquals(10, listener.lastProcessed);
+  }
+
+  public void testRuntimeFailureIsReportedAsChunkFailure() throws IOException {
+    StubClient        client   = new StubClient();
+    RecordingListener listener = new RecordingListener();
+
+    client.failures.put(6, new IllegalStateException("bug"));
+
+    SignalServiceAccountManager.discoverRegisteredUsers(client, ADDRESS_BOOK, 3, 2, listener);
+
+    assertEquals(Arrays.asList("+14155550106", "+14155550107", "+14155550108"), listener.failed);
+    assertEquals(10, listener.lastProcessed);
+  }
+
+  public void testTransientFailureIsRetried() throws IOException {
+    StubClient        client   = new StubClient();
+    RecordingListener listener = new RecordingListener();
+
+    client.failures.put(9, new IOException("network"));
+    client.failOnce = true;
+
+    SignalServiceAccountManager.discoverRegisteredUsers(client, ADDRESS_BOOK, 3, 2, listener);
+
+    assertEquals(5, client.calls.get());
+    assertTrue(listener.failed.isEmpty());
+    assertEquals(5, listener.registered.size());
+  }
+
+  private static class StubClient extends ContactDiscoveryClient {
+
+    private final AtomicInteger                         calls    = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Exception> failures = new ConcurrentHashMap<>();
+
+    private volatile boolean failOnce;
+
+    private StubClient() {
+      super(null, null, null, null);
+    }
+
+    @Override
+    public byte[] discover(long[] addressBook, int offset, int length) throws IOException, SignatureException {
+      calls.incrementAndGet();
+
+      Exception failure = failOnce ? failures.remove(offset) : failures.get(offset);
+
+      if      (failure instanceof IOException)        throw (IOException)failure;
+      else if (failure instanceof SignatureException) throw (SignatureException)failure;
+      else if (failure instanceof RuntimeException)   throw (RuntimeException)failure;
+
+      byte[] results = new byte[length];
+
+      for (int i=0;i<length;i++) {
+        results[i] = (byte)(addressBook[offset + i] % 2 == 0 ? 1 : 0);
+      }
+
+      return results;
+    }
+  }
+
+  private static class RecordingListener implements SignalServiceAccountManager.RegisteredUsersListener {
+
+    private final Set<String>  registered = new HashSet<>();
+    private final List<String> failed     = new LinkedList<>();
+
+    private int lastProcessed;
+
+    @Override
+    public void onRegisteredUser(String e164number) {
+      registered.add(e164number);
+    }
+
+    @Override
+    public void onProgress(int processed, int total) {
+      assertEquals(ADDRESS_BOOK.length, total);
+      lastProcessed = processed;
+    }
+
+    @Override
+    public void onChunkFailed(List<String> e164numbers, Exception failure) {
+      failed.addAll(e164numbers);
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package org.whispersystems.circleservice.api;
+
+
+import junit.framework.TestCase;
+
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SenderCertificateHolderTest extends TestCase {
+
+  public void testConcurrentRefreshesShareOneFetch() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger  calls   = new AtomicInteger();
+
+    SenderCertificateHolder holder = new SenderCertificateHolder(new SenderCertificateHolder.CertificateFetcher() {
+      @Override
+      public byte[] fetch() throws IOException {
+        calls.incrementAndGet();
+
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+
+        throw new IOException("unavailable");
+      }
+    }, 0, TimeUnit.MINUTES.toMillis(1));
+
+    try {
+      ListenableFuture<byte[]> first  = holder.refresh();
+      ListenableFuture<byte[]> second = holder.refresh();
+
+      assertSame(first, second);
+
+      release.countDown();
+      assertFailsWithIOException(first);
+
+      assertEquals(1, calls.get());
+      assertNotSame(first, holder.refresh());
+    } finally {
+      holder.shutdown();
+    }
+  }
+
+  public void testRuntimeFailureCompletesAndReschedules() throws Exception {
+    final CountDownLatch retried = new CountDownLatch(2);
+
+    SenderCertificateHolder holder = new SenderCertificateHolder(new SenderCertificateHolder.CertificateFetcher() {
+      @Override
+      public byte[] fetch() {
+        retried.countDown();
+        throw new IllegalStateException("bug");
+      }
+    }, 0, 50);
+
+    try {
+      assertFailsWithIOException(holder.refresh());
+      assertTrue(retried.await(5, TimeUnit.SECONDS));
+      assertFalse(holder.getCachedCertificate().isPresent());
+    } finally {
+      holder.shutdown();
+    }
+  }
+
+  private static void assertFailsWithIOException(ListenableFuture<byte[]> future) throws Exception {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package org.whispersystems.circleservice.api;
+
+
+import junit.framework.TestCase;
+
+import org.whispersystems.circleservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.circleservice.internal.configuration.SignalCdnUrl;
+import org.whispersystems.circleservice.internal.configuration.SignalContactDiscoveryUrl;
+import org.whispersystems.circleservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.circleservice.internal.configuration.SignalServiceUrl;
+import org.whispersystems.circleservice.internal.push.PushServiceSocket;
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.circleservice.internal.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SignalServiceMessageAcknowledgerTest extends TestCase {
+
+  public void testFlushWaitsForBatchDispatchedInBackground() throws Exception {
+    final StubSocket                       socket       = new StubSocket();
+    final SignalServiceMessageAcknowledger acknowledger = new SignalServiceMessageAcknowledger(socket, 10, 1, 2);
+
+    socket.blockFirstAcknowledgement();
+
+    for (int i=0;i<3;i++) {
+      acknowledger.acknowledge(createEnvelope(i));
+    }
+
+    assertTrue(socket.dispatching.await(5, TimeUnit.SECONDS));
+
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        socket.resume.countDown();
+      }
+    }.start();
+
+    acknowledger.flush();
+
+    assertEquals(3, socket.acknowledged.get());
+    acknowledger.shutdown();
+  }
+
+  public void testFlushReportsFailures() throws Exception {
+    StubSocket                       socket       = new StubSocket();
+    SignalServiceMessageAcknowledger acknowledger = new SignalServiceMessageAcknowledger(socket, 2, 1000, 2);
+
+    socket.fail = true;
+    acknowledger.acknowledge(createEnvelope(0));
+
+    try {
+      acknowledger.flush();
+      fail();
+    } catch (IOException e) {
+      // good
+    }
+
+    socket.fail = false;
+    acknowledger.acknowledge(createEnvelope(1));
+    acknowledger.flush();
+    acknowledger.shutdown();
+  }
+
+  public void testAcknowledgeAfterShutdownFails() throws Exception {
+    StubSocket                       socket       = new StubSocket();
+    SignalServiceMessageAcknowledger acknowledger = new SignalServiceMessageAcknowledger(socket, 2, 1000, 2);
+
+    acknowledger.acknowledge(createEnvelope(0));
+    acknowledger.shutdown();
+
+    assertEquals(1, socket.acknowledged.get());
+
+    try {
+      acknowledger.acknowledge(createEnvelope(1));
+      fail();
+    } catch (IOException e) {
+      // good
+    }
+  }
+
+  private static SignalServiceEnvelope createEnvelope(int index) {
+    return new SignalServiceEnvelope(1, "+14155550100", 1, 1000 + index, null, null, 2000 + index, "uuid-" + index);
+  }
+
+  private static class StubSocket extends PushServiceSocket {
+
+    private final AtomicInteger  acknowledged = new AtomicInteger();
+    private final CountDownLatch dispatching  = new CountDownLatch(1);
+    private final CountDownLatch resume       = new CountDownLatch(1);
+
+    private volatile boolean block;
+    private volatile boolean fail;
+
+    private StubSocket() {
+      super(new SignalServiceConfiguration(new SignalServiceUrl[0], new SignalCdnUrl[0], new SignalContactDiscoveryUrl[0]), null, null);
+    }
+
+    private void blockFirstAcknowledgement() {
+      block = true;
+    }
+
+    @Override
+    public ListenableFuture<Void> acknowledgeMessageAsync(String uuid) {
+      if (block) {
+        block = false;
+        dispatching.countDown();
+
+        try {
+          resume.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      SettableFuture<Void> future = new SettableFuture<>();
+
+      if (fail) {
+        future.setException(new IOException("nope"));
+      } else {
+        acknowledged.incrementAndGet();
+        future.set(null);
+      }
+
+      return future;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package org.whispersystems.circleservice.api;
+
+
+import junit.framework.TestCase;
+
+import org.whispersystems.circleservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.circleservice.internal.configuration.SignalCdnUrl;
+import org.whispersystems.circleservice.internal.configuration.SignalContactDiscoveryUrl;
+import org.whispersystems.circleservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.circleservice.internal.configuration.SignalServiceUrl;
+import org.whispersystems.circleservice.internal.push.PushServiceSocket;
+import org.whispersystems.circleservice.internal.push.SignalServiceEnvelopeEntity;
+import org.whispersystems.circleservice.internal.util.JsonUtil;
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.circleservice.internal.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SignalServiceMessageReceiverTest extends TestCase {
+
+  private static final int PAGES     = 3;
+  private static final int PAGE_SIZE = 5;
+
+  public void testStreamingWaitsForAcknowledgementsBeforeNextPage() throws Exception {
+    StubSocket                   socket   = new StubSocket();
+    SignalServiceMessageReceiver receiver = new SignalServiceMessageReceiver(socket.configuration, null, socket, null, null, null);
+    final AtomicInteger          received = new AtomicInteger();
+
+    try {
+      int total = receiver.retrieveMessagesStreaming(new SignalServiceMessageReceiver.MessageReceivedCallback() {
+        @Override
+        public void onMessage(SignalServiceEnvelope envelope) {
+          received.incrementAndGet();
+        }
+      });
+
+      assertEquals(PAGES * PAGE_SIZE, total);
+      assertEquals(PAGES * PAGE_SIZE, received.get());
+      assertEquals(PAGES * PAGE_SIZE, socket.acknowledged.get());
+      assertEquals(PAGES + 1, socket.pages.get());
+    } finally {
+      socket.responder.shutdownNow();
+    }
+  }
+
+  private static class StubSocket extends PushServiceSocket {
+
+    private final SignalServiceConfiguration configuration;
+    private final ScheduledExecutorService   responder    = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicInteger              pages        = new AtomicInteger();
+    private final AtomicInteger              delivered    = new AtomicInteger();
+    private final AtomicInteger              acknowledged = new AtomicInteger();
+
+    private StubSocket() {
+      this(new SignalServiceConfiguration(new SignalServiceUrl[0], new SignalCdnUrl[0], new SignalContactDiscoveryUrl[0]));
+    }
+
+    private StubSocket(SignalServiceConfiguration configuration) {
+      super(configuration, null, null);
+      this.configuration = configuration;
+    }
+
+    @Override
+    public boolean getMessages(MessageEntityListener listener) throws IOException {
+      int page = pages.getAndIncrement();
+
+      assertEquals("Page requested before the previous page was acknowledged", delivered.get(), acknowledged.get());
+
+      if (page >= PAGES) {
+        return false;
+      }
+
+      for (int i=0;i<PAGE_SIZE;i++) {
+        int index = delivered.getAndIncrement();
+        listener.onMessage(JsonUtil.fromJson("{\"type\":1,\"timestamp\":" + index + ",\"source\":\"+14155550100\"," +
+                                             "\"sourceDevice\":1,\"serverTimestamp\":" + index + ",\"guid\":\"uuid-" + index + "\"}",
+                                             SignalServiceEnvelopeEntity.class));
+      }
+
+      return true;
+    }
+
+    @Override
+    public ListenableFuture<Void> acknowledgeMessageAsync(String uuid) {
+      final SettableFuture<Void> future = new SettableFuture<>();
+
+      responder.schedule(new Runnable() {
+        @Override
+        public void run() {
+          acknowledged.incrementAndGet();
+          future.set(null);
+        }
+      }, 20, TimeUnit.MILLISECONDS);
+
+      return future;
+    }
+  }
+}
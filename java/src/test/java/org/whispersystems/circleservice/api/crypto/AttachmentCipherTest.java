@@ -0,0 +1,199 @@
+package org.whispersystems.circleservice.api.crypto;
+
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.InvalidMacException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.circleservice.internal.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class AttachmentCipherTest extends TestCase {
+
+  public void testEncryptDecrypt() throws Exception {
+    for (int length : new int[] {1, 15, 16, 17, 8191, 8192, 8193, 100000}) {
+      byte[] key       = Util.getSecretBytes(64);
+      byte[] plaintext = Util.getSecretBytes(length);
+      File   encrypted = File.createTempFile("attachment", ".enc");
+
+      try {
+        byte[] digest = encrypt(key, plaintext, encrypted);
+
+        assertTrue(Arrays.equals(plaintext, readAll(AttachmentCipherInputStream.createFor(encrypted, length, key, digest), 1)));
+        assertTrue(Arrays.equals(plaintext, readAll(AttachmentCipherInputStream.createFor(encrypted, length, key, digest), 7)));
+        assertTrue(Arrays.equals(plaintext, readAll(AttachmentCipherInputStream.createFor(encrypted, length, key, digest), 65536)));
+      } finally {
+        encrypted.delete();
+      }
+    }
+  }
+
+  public void testSkip() throws Exception {
+    byte[] key       = Util.getSecretBytes(64);
+    byte[] plaintext = Util.getSecretBytes(20000);
+    File   encrypted = File.createTempFile("attachment", ".enc");
+
+    try {
+      byte[]      digest = encrypt(key, plaintext, encrypted);
+      InputStream in     = AttachmentCipherInputStream.createFor(encrypted, plaintext.length, key, digest);
+
+      assertEquals(10000, in.skip(10000));
+      assertEquals(plaintext[10000] & 0xFF, in.read());
+      assertTrue(Arrays.equals(Arrays.copyOfRange(plaintext, 10001, plaintext.length), readAll(in, 4096)));
+    } finally {
+      encrypted.delete();
+    }
+  }
+
+  public void testBadDigest() throws Exception {
+    byte[] key       = Util.getSecretBytes(64);
+    byte[] plaintext = Util.getSecretBytes(1000);
+    File   encrypted = File.createTempFile("attachment", ".enc");
+
+    try {
+      byte[] digest = encrypt(key, plaintext, encrypted);
+      digest[0] ^= 0x01;
+
+      AttachmentCipherInputStream.createFor(encrypted, plaintext.length, key, digest);
+      fail();
+    } catch (InvalidMessageException e) {
+      // good
+    } finally {
+      encrypted.delete();
+    }
+  }
+
+  public void testSinglePassDecrypt() throws Exception {
+    byte[] key       = Util.getSecretBytes(64);
+    byte[] plaintext = Util.getSecretBytes(50000);
+    File   encrypted = File.createTempFile("attachment", ".enc");
+    File   decrypted = File.createTempFile("attachment", ".dec");
+
+    try {
+      byte[] digest = encrypt(key, plaintext, encrypted);
+
+      assertTrue(Arrays.equals(plaintext, readAll(AttachmentCipherInputStream.createFor(encrypted, plaintext.length, key, digest, decrypted), 4096)));
+      assertEquals(plaintext.length, decrypted.length());
+    } finally {
+      encrypted.delete();
+      decrypted.delete();
+    }
+  }
+
+  public void testSinglePassBadDigest() throws Exception {
+    byte[] key       = Util.getSecretBytes(64);
+    byte[] plaintext = Util.getSecretBytes(50000);
+    File   encrypted = File.createTempFile("attachment", ".enc");
+    File   decrypted = new File(encrypted.getPath() + ".dec");
+
+    try {
+      byte[] digest = encrypt(key, plaintext, encrypted);
+      digest[0] ^= 0x01;
+
+      AttachmentCipherInputStream.createFor(encrypted, plaintext.length, key, digest, decrypted);
+      fail();
+    } catch (InvalidMessageException e) {
+      assertFalse(decrypted.exists());
+    } finally {
+      encrypted.delete();
+      decrypted.delete();
+    }
+  }
+
+  public void testSinglePassTamperedCiphertextFailsMac() throws Exception {
+    byte[]                key        = Util.getSecretBytes(64);
+    byte[]                plaintext  = Util.getSecretBytes(10000);
+    ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+    byte[]                digest     = encrypt(key, plaintext, ciphertext);
+    byte[]                tampered   = ciphertext.toByteArray();
+
+    tampered[tampered.length - 32 - 1] ^= 0x01;
+
+    try {
+      AttachmentCipherInputStream.decrypt(new ByteArrayInputStream(tampered), tampered.length, plaintext.length,
+                                          key, digest, new ByteArrayOutputStream());
+      fail();
+    } catch (InvalidMessageException e) {
+      assertTrue(e.getCause() instanceof InvalidMacException);
+    }
+  }
+
+  public void testVerifyingOutputStream() throws Exception {
+    for (int chunkSize : new int[] {1, 31, 32, 33, 4096}) {
+      byte[]                key        = Util.getSecretBytes(64);
+      byte[]                plaintext  = Util.getSecretBytes(10000);
+      ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+      byte[]                digest     = encrypt(key, plaintext, ciphertext);
+
+      ByteArrayOutputStream                 result    = new ByteArrayOutputStream();
+      AttachmentCipherVerifyingOutputStream verifying = new AttachmentCipherVerifyingOutputStream(result, plaintext.length, key, digest);
+
+      writeInChunks(verifying, ciphertext.toByteArray(), chunkSize);
+      verifying.finish();
+
+      assertTrue(Arrays.equals(plaintext, result.toByteArray()));
+    }
+  }
+
+  public void testVerifyingOutputStreamBadMac() throws Exception {
+    byte[]                key        = Util.getSecretBytes(64);
+    byte[]                plaintext  = Util.getSecretBytes(10000);
+    ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+    byte[]                digest     = encrypt(key, plaintext, ciphertext);
+    byte[]                tampered   = ciphertext.toByteArray();
+
+    tampered[tampered.length - 1] ^= 0x01;
+
+    AttachmentCipherVerifyingOutputStream verifying = new AttachmentCipherVerifyingOutputStream(new ByteArrayOutputStream(), plaintext.length, key, digest);
+    writeInChunks(verifying, tampered, 1000);
+
+    try {
+      verifying.finish();
+      fail();
+    } catch (InvalidMessageException e) {
+      // good
+    }
+  }
+
+  private static void writeInChunks(OutputStream out, byte[] data, int chunkSize) throws IOException {
+    for (int offset=0;offset<data.length;offset+=chunkSize) {
+      out.write(data, offset, Math.min(chunkSize, data.length - offset));
+    }
+  }
+
+  private static byte[] encrypt(byte[] key, byte[] plaintext, File destination) throws IOException {
+    return encrypt(key, plaintext, new FileOutputStream(destination));
+  }
+
+  private static byte[] encrypt(byte[] key, byte[] plaintext, OutputStream destination) throws IOException {
+    AttachmentCipherOutputStream cipherOutput = new AttachmentCipherOutputStream(key, destination);
+
+    cipherOutput.write(plaintext);
+    cipherOutput.flush();
+    cipherOutput.close();
+
+    return cipherOutput.getTransmittedDigest();
+  }
+
+  private static byte[] readAll(InputStream in, int bufferSize) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[bufferSize];
+
+    int read;
+
+    while ((read = in.read(buffer)) != -1) {
+      result.write(buffer, 0, read);
+    }
+
+    in.close();
+    return result.toByteArray();
+  }
+}
@@ -0,0 +1,87 @@
+package org.whispersystems.circleservice.api.messages;
+
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.circleservice.internal.push.SignalServiceProtos.Envelope;
+import org.whispersystems.circleservice.internal.util.Base64;
+import org.whispersystems.circleservice.internal.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class SignalServiceEnvelopeDecoderTest extends TestCase {
+
+  private final byte[] keys    = Util.getSecretBytes(52);
+  private final byte[] content = Util.getSecretBytes(300);
+
+  public void testDecode() throws Exception {
+    SignalServiceEnvelopeDecoder decoder    = new SignalServiceEnvelopeDecoder(Base64.encodeBytes(keys));
+    byte[]                       ciphertext = encrypt();
+
+    for (int i=0;i<3;i++) {
+      SignalServiceEnvelope envelope = decoder.decode(ciphertext);
+
+      assertEquals("+14151231234", envelope.getSource());
+      assertEquals(2, envelope.getSourceDevice());
+      assertTrue(Arrays.equals(content, envelope.getContent()));
+    }
+  }
+
+  public void testMatchesLegacyConstructor() throws Exception {
+    byte[]                ciphertext = encrypt();
+    SignalServiceEnvelope envelope   = new SignalServiceEnvelope(ciphertext, Base64.encodeBytes(keys));
+
+    assertTrue(Arrays.equals(content, envelope.getContent()));
+  }
+
+  public void testBadMac() throws Exception {
+    SignalServiceEnvelopeDecoder decoder    = new SignalServiceEnvelopeDecoder(Base64.encodeBytes(keys));
+    byte[]                       ciphertext = encrypt();
+
+    ciphertext[ciphertext.length - 1] ^= 0x01;
+
+    try {
+      decoder.decode(ciphertext);
+      fail();
+    } catch (IOException e) {
+      // good
+    }
+  }
+
+  private byte[] encrypt() throws Exception {
+    byte[]   iv        = Util.getSecretBytes(16);
+    byte[][] parts     = Util.split(keys, 32, 20);
+    byte[]   plaintext = Envelope.newBuilder()
+                                 .setType(Envelope.Type.CIPHERTEXT)
+                                 .setSource("+14151231234")
+                                 .setSourceDevice(2)
+                                 .setTimestamp(System.currentTimeMillis())
+                                 .setContent(ByteString.copyFrom(content))
+                                 .build()
+                                 .toByteArray();
+
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(parts[0], "AES"), new IvParameterSpec(iv));
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    output.write(1);
+    output.write(iv);
+    output.write(cipher.doFinal(plaintext));
+
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+    output.write(mac.doFinal(output.toByteArray()), 0, 10);
+
+    return output.toByteArray();
+  }
+}
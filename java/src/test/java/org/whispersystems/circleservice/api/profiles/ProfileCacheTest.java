@@ -0,0 +1,112 @@
+package org.whispersystems.circleservice.api.profiles;
+
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.circleservice.api.crypto.UnidentifiedAccess;
+import org.whispersystems.circleservice.api.push.SignalServiceAddress;
+import org.whispersystems.circleservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.circleservice.internal.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+public class ProfileCacheTest extends TestCase {
+
+  private static final SignalServiceAddress ADDRESS = new SignalServiceAddress("+14155550100");
+
+  public void testCoalescesAndCaches() throws Exception {
+    ProfileCache  cache   = new ProfileCache(10, 60000);
+    QueuedFetcher fetcher = new QueuedFetcher();
+
+    ListenableFuture<SignalServiceProfile> first  = cache.get(ADDRESS, Optional.<UnidentifiedAccess>absent(), fetcher);
+    ListenableFuture<SignalServiceProfile> second = cache.get(ADDRESS, Optional.<UnidentifiedAccess>absent(), fetcher);
+
+    assertEquals(1, fetcher.requests.size());
+    assertFalse(first.isDone());
+
+    SignalServiceProfile profile = new SignalServiceProfile();
+    fetcher.requests.get(0).set(profile);
+
+    assertSame(profile, first.get());
+    assertSame(profile, second.get());
+    assertSame(profile, cache.get(ADDRESS, Optional.<UnidentifiedAccess>absent(), fetcher).get());
+    assertEquals(1, fetcher.requests.size());
+
+    cache.invalidate(ADDRESS);
+    cache.get(ADDRESS, Optional.<UnidentifiedAccess>absent(), fetcher);
+
+    assertEquals(2, fetcher.requests.size());
+  }
+
+  public void testFailuresAreNotCached() throws Exception {
+    ProfileCache  cache   = new ProfileCache(10, 60000);
+    QueuedFetcher fetcher = new QueuedFetcher();
+
+    ListenableFuture<SignalServiceProfile> failed = cache.get(ADDRESS, Optional.<UnidentifiedAccess>absent(), fetcher);
+    fetcher.requests.get(0).setException(new IOException("nope"));
+
+    try {
+      failed.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+
+    cache.get(ADDRESS, Optional.<UnidentifiedAccess>absent(), fetcher);
+    assertEquals(2, fetcher.requests.size());
+  }
+
+  public void testInvalidateDuringLookupIsNotCached() throws Exception {
+    ProfileCache  cache   = new ProfileCache(10, 60000);
+    QueuedFetcher fetcher = new QueuedFetcher();
+
+    ListenableFuture<SignalServiceProfile> stale = cache.get(ADDRESS, Optional.<UnidentifiedAccess>absent(), fetcher);
+    cache.invalidate(ADDRESS);
+
+    SignalServiceProfile profile = new SignalServiceProfile();
+    fetcher.requests.get(0).set(profile);
+
+    assertSame(profile, stale.get());
+
+    cache.get(ADDRESS, Optional.<UnidentifiedAccess>absent(), fetcher);
+    assertEquals(2, fetcher.requests.size());
+  }
+
+  public void testExpiredLookupIsFailedAndReplaced() throws Exception {
+    ProfileCache  cache   = new ProfileCache(10, 60000, 0);
+    QueuedFetcher fetcher = new QueuedFetcher();
+
+    ListenableFuture<SignalServiceProfile> hung  = cache.get(ADDRESS, Optional.<UnidentifiedAccess>absent(), fetcher);
+    ListenableFuture<SignalServiceProfile> fresh = cache.get(ADDRESS, Optional.<UnidentifiedAccess>absent(), fetcher);
+
+    assertEquals(2, fetcher.requests.size());
+
+    try {
+      hung.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+
+    SignalServiceProfile profile = new SignalServiceProfile();
+    fetcher.requests.get(1).set(profile);
+    fetcher.requests.get(0).set(new SignalServiceProfile());
+
+    assertSame(profile, fresh.get());
+  }
+
+  private static class QueuedFetcher implements ProfileCache.Fetcher {
+    private final List<SettableFuture<SignalServiceProfile>> requests = new LinkedList<>();
+
+    @Override
+    public ListenableFuture<SignalServiceProfile> fetch(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess) {
+      SettableFuture<SignalServiceProfile> request = new SettableFuture<>();
+      requests.add(request);
+      return request;
+    }
+  }
+}
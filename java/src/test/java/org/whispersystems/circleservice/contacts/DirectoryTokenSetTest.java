@@ -0,0 +1,50 @@
+package org.whispersystems.circleservice.contacts;
+
+
+import junit.framework.TestCase;
+
+import org.whispersystems.circleservice.internal.contacts.DirectoryTokenSet;
+import org.whispersystems.circleservice.internal.util.Base64;
+import org.whispersystems.circleservice.internal.util.Util;
+
+import java.security.MessageDigest;
+
+public class DirectoryTokenSetTest extends TestCase {
+
+  public void testMatchesLegacyTokens() throws Exception {
+    long[]            numbers = new long[10000];
+    DirectoryTokenSet tokens;
+
+    for (int i=0;i<numbers.length;i++) {
+      numbers[i] = 14155550000L + i * 7919L;
+    }
+
+    tokens = DirectoryTokenSet.create(numbers, false);
+
+    for (int i=0;i<numbers.length;i++) {
+      String e164number = "+" + numbers[i];
+      String expected   = legacyToken(e164number);
+
+      assertEquals(expected, tokens.getToken(i));
+      assertEquals(expected, DirectoryTokenSet.createToken(e164number, false));
+      assertEquals(e164number, tokens.getE164Number(tokens.indexOf(expected)));
+    }
+
+    assertEquals(-1, tokens.indexOf(legacyToken("+14155550001")));
+  }
+
+  public void testUrlSafe() throws Exception {
+    for (int i=0;i<1000;i++) {
+      String e164number = "+4477009" + (10000 + i);
+      String expected   = legacyToken(e164number).replace('+', '-').replace('/', '_');
+
+      assertEquals(expected, DirectoryTokenSet.createToken(e164number, true));
+      assertEquals(expected, DirectoryTokenSet.create(new long[] {Long.parseLong(e164number.substring(1))}, true).getToken(0));
+    }
+  }
+
+  private static String legacyToken(String e164number) throws Exception {
+    byte[] token = Util.trim(MessageDigest.getInstance("SHA1").digest(e164number.getBytes()), 10);
+    return Base64.encodeBytesWithoutPadding(token);
+  }
+}
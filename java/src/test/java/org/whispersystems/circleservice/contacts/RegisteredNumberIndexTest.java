@@ -0,0 +1,68 @@
+package org.whispersystems.circleservice.contacts;
+
+
+import junit.framework.TestCase;
+
+import org.whispersystems.circleservice.api.contacts.RegisteredNumberIndex;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class RegisteredNumberIndexTest extends TestCase {
+
+  private File file;
+
+  @Override
+  public void setUp() throws Exception {
+    file = File.createTempFile("index", ".bin");
+    file.delete();
+  }
+
+  @Override
+  public void tearDown() {
+    file.delete();
+  }
+
+  public void testUpdateAndDelta() throws Exception {
+    RegisteredNumberIndex index = new RegisteredNumberIndex(file);
+
+    index.update(new long[] {14155550102L, 14155550100L, 14155550101L}, new byte[] {1, 0, 1});
+
+    assertEquals(3, index.size());
+    assertTrue(index.isRegistered("+14155550101"));
+    assertFalse(index.isRegistered("+14155550100"));
+    assertTrue(Arrays.equals(new long[] {14155550103L}, index.getUnknown(new long[] {14155550100L, 14155550103L})));
+
+    index.update(new long[] {14155550100L, 14155550099L, 14155550099L}, new byte[] {1, 0, 1});
+
+    assertEquals(4, index.size());
+    assertEquals(new HashSet<>(Arrays.asList("+14155550099", "+14155550100", "+14155550101", "+14155550102")),
+                 index.getRegisteredNumbers());
+  }
+
+  public void testRetainAll() throws Exception {
+    RegisteredNumberIndex index = new RegisteredNumberIndex(file);
+
+    index.update(new long[] {14155550100L, 14155550101L, 14155550102L}, new byte[] {1, 1, 0});
+    index.retainAll(new long[] {14155550102L, 14155550101L});
+
+    assertEquals(2, index.size());
+    assertEquals(new HashSet<>(Arrays.asList("+14155550101")), index.getRegisteredNumbers());
+  }
+
+  public void testSaveAndLoad() throws Exception {
+    RegisteredNumberIndex index = new RegisteredNumberIndex(file);
+
+    index.update(new long[] {447700900123L, 14155550100L, 8613800138000L}, new byte[] {1, 0, 1});
+    index.setLastFullReconciliationTime(1234);
+    index.save();
+
+    RegisteredNumberIndex loaded = new RegisteredNumberIndex(file);
+
+    assertEquals(3, loaded.size());
+    assertEquals(1234, loaded.getLastFullReconciliationTime());
+    assertEquals(index.getRegisteredNumbers(), loaded.getRegisteredNumbers());
+    assertEquals(0, loaded.getUnknown(new long[] {14155550100L}).length);
+  }
+}
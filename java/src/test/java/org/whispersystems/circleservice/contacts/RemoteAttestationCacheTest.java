@@ -0,0 +1,53 @@
+package org.whispersystems.circleservice.contacts;
+
+
+import junit.framework.TestCase;
+
+import org.whispersystems.circleservice.internal.contacts.RemoteAttestationCache;
+
+import java.util.LinkedList;
+
+public class RemoteAttestationCacheTest extends TestCase {
+
+  private static final String MRENCLAVE = "cd6cfc342937b23b1bdd3bbf9721aa5615ac9ff50a75c5527d441cd3276826c9";
+
+  public void testHitAndMiss() {
+    RemoteAttestationCache cache = new RemoteAttestationCache(60000);
+
+    assertNull(cache.get(MRENCLAVE, "https://a"));
+
+    RemoteAttestationCache.Session session = cache.put(MRENCLAVE, "https://a", "auth", null, new LinkedList<String>(), Long.MAX_VALUE);
+
+    assertSame(session, cache.get(MRENCLAVE, "https://a"));
+    assertNull(cache.get(MRENCLAVE, "https://b"));
+    assertNull(cache.get("other", "https://a"));
+  }
+
+  public void testExpiresWithSignature() {
+    RemoteAttestationCache cache = new RemoteAttestationCache(60000);
+
+    cache.put(MRENCLAVE, "https://a", "auth", null, new LinkedList<String>(), System.currentTimeMillis() - 1);
+
+    assertNull(cache.get(MRENCLAVE, "https://a"));
+  }
+
+  public void testExpiresWithTtl() {
+    RemoteAttestationCache cache = new RemoteAttestationCache(0);
+
+    cache.put(MRENCLAVE, "https://a", "auth", null, new LinkedList<String>(), Long.MAX_VALUE);
+
+    assertNull(cache.get(MRENCLAVE, "https://a"));
+  }
+
+  public void testInvalidateOnlyRemovesSameSession() {
+    RemoteAttestationCache         cache = new RemoteAttestationCache(60000);
+    RemoteAttestationCache.Session stale = cache.put(MRENCLAVE, "https://a", "auth", null, new LinkedList<String>(), Long.MAX_VALUE);
+    RemoteAttestationCache.Session fresh = cache.put(MRENCLAVE, "https://a", "auth", null, new LinkedList<String>(), Long.MAX_VALUE);
+
+    cache.invalidate(MRENCLAVE, "https://a", stale);
+    assertSame(fresh, cache.get(MRENCLAVE, "https://a"));
+
+    cache.invalidate(MRENCLAVE, "https://a", fresh);
+    assertNull(cache.get(MRENCLAVE, "https://a"));
+  }
+}
@@ -0,0 +1,180 @@
+package org.whispersystems.circleservice.push;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.circleservice.internal.push.AttachmentDownloader;
+import org.whispersystems.circleservice.internal.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+
+public class AttachmentDownloaderTest extends TestCase {
+
+  private static final int     SEGMENT_SIZE = 1000;
+  private static final Pattern RANGE        = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  private volatile byte[]     data           = Util.getSecretBytes(SEGMENT_SIZE * 7 + 123);
+  private volatile String     etag           = "\"1\"";
+  private final AtomicInteger rangeRequests  = new AtomicInteger();
+  private final AtomicInteger failuresToSend = new AtomicInteger();
+
+  private HttpServer server;
+  private File       destination;
+  private boolean    supportsRanges;
+
+  @Override
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/attachment", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        Matcher range   = RANGE.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+        String  ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+
+        exchange.getResponseHeaders().add("ETag", etag);
+
+        if (!supportsRanges || !range.matches() || (ifRange != null && !ifRange.equals(etag))) {
+          respond(exchange, 200, 0, data.length);
+          return;
+        }
+
+        int start = Integer.parseInt(range.group(1));
+        int end   = Math.min(Integer.parseInt(range.group(2)), data.length - 1);
+
+        rangeRequests.incrementAndGet();
+
+        if (start > 0 && failuresToSend.getAndDecrement() > 0) {
+          exchange.sendResponseHeaders(500, -1);
+          exchange.close();
+          return;
+        }
+
+        exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+        respond(exchange, 206, start, end - start + 1);
+      }
+    });
+    server.start();
+
+    supportsRanges = true;
+    destination    = File.createTempFile("download", ".enc");
+    destination.delete();
+  }
+
+  @Override
+  public void tearDown() {
+    server.stop(0);
+    destination.delete();
+    new File(destination.getPath() + ".partial").delete();
+  }
+
+  public void testParallelDownload() throws IOException {
+    createDownloader().download(new OkHttpClient(), getUrl(), destination, data.length, null);
+
+    assertTrue(Arrays.equals(data, readFile(destination)));
+    assertEquals(8, rangeRequests.get());
+  }
+
+  public void testServerWithoutRangeSupport() throws IOException {
+    supportsRanges = false;
+
+    createDownloader().download(new OkHttpClient(), getUrl(), destination, data.length, null);
+
+    assertTrue(Arrays.equals(data, readFile(destination)));
+  }
+
+  public void testMaxSize() throws IOException {
+    try {
+      createDownloader().download(new OkHttpClient(), getUrl(), destination, data.length - 1, null);
+      fail();
+    } catch (IOException e) {
+      // good
+    }
+  }
+
+  public void testResume() throws IOException {
+    failuresToSend.set(1);
+
+    try {
+      createDownloader(1).download(new OkHttpClient(), getUrl(), destination, data.length, null);
+      fail();
+    } catch (IOException e) {
+      // good
+    }
+
+    assertTrue(new File(destination.getPath() + ".partial").exists());
+    assertEquals(2, rangeRequests.getAndSet(0));
+
+    createDownloader(1).download(new OkHttpClient(), getUrl(), destination, data.length, null);
+
+    assertTrue(Arrays.equals(data, readFile(destination)));
+    assertEquals(7, rangeRequests.get());
+    assertFalse(new File(destination.getPath() + ".partial").exists());
+  }
+
+  public void testRestartsWhenObjectChanges() throws IOException {
+    failuresToSend.set(1);
+
+    try {
+      createDownloader(1).download(new OkHttpClient(), getUrl(), destination, data.length, null);
+      fail();
+    } catch (IOException e) {
+      // good
+    }
+
+    data = Util.getSecretBytes(data.length);
+    etag = "\"2\"";
+
+    createDownloader(1).download(new OkHttpClient(), getUrl(), destination, data.length, null);
+
+    assertTrue(Arrays.equals(data, readFile(destination)));
+    assertFalse(new File(destination.getPath() + ".partial").exists());
+  }
+
+  private AttachmentDownloader createDownloader() {
+    return createDownloader(3);
+  }
+
+  private AttachmentDownloader createDownloader(int parallelism) {
+    return new AttachmentDownloader(new HashSet<Call>(), parallelism, SEGMENT_SIZE);
+  }
+
+  private String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/attachment";
+  }
+
+  private void respond(HttpExchange exchange, int status, int offset, int length) throws IOException {
+    exchange.sendResponseHeaders(status, length);
+
+    OutputStream body = exchange.getResponseBody();
+    body.write(data, offset, length);
+    body.close();
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    RandomAccessFile in     = new RandomAccessFile(file, "r");
+    byte[]           result = new byte[(int)in.length()];
+
+    try {
+      in.readFully(result);
+    } finally {
+      in.close();
+    }
+
+    return result;
+  }
+}